@@ -0,0 +1,14 @@
+package com.jorge.thesis.datamodel;
+
+/**
+ * Creates tags outside of the registry, for benchmarks that only need one to name a tag of a store.
+ */
+public final class CEntityTags {
+
+    private CEntityTags() {
+    }
+
+    public static CEntityTagManager.CEntityTag create(String name) {
+        return new CEntityTagManager.CEntityTag(name, -1);
+    }
+}
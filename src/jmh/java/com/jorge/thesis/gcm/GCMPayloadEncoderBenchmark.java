@@ -0,0 +1,83 @@
+package com.jorge.thesis.gcm;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.io.store.SubscriptionStoreSingleton;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of building the body of a batch through {@link GCMPayloadEncoder} against the way it was done before: a JSON
+ * tree of the registration ids turned into a {@link String}, and then into the bytes that are sent. Run it with the
+ * allocation profiler to see the garbage of each, <code>gradle jmh -PjmhArgs="GCMPayloadEncoder -prof gc"</code>.
+ * <p>
+ * The registration ids are subscribed to an embedded database under build/jmh (see the resource
+ * /database_connection_line of the benchmarks), as the encoder reads them from the dictionary they are indexed in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GCMPayloadEncoderBenchmark {
+
+    private static final String TAG_PREFIX = "encoder_benchmark_", URL = "http://127.0.0.1/gcm/send";
+    /**
+     * As long as the registration ids GCM hands out.
+     */
+    private static final Integer REGISTRATION_ID_LENGTH = 152;
+    @Param({"100", "1000"})
+    public Integer devicesPerBatch;
+    private final GCMPayloadEncoder mEncoder = new GCMPayloadEncoder(URL, "benchmark");
+    private String mTag;
+    private int[] mDeviceIds;
+
+    /**
+     * Every batch size has a tag of its own, as the database keeps the subscriptions of earlier runs.
+     */
+    @Setup(Level.Trial)
+    public void subscribeDevices() {
+        mTag = TAG_PREFIX + devicesPerBatch;
+        SubscriptionStoreSingleton.getInstance().createEnvironment();
+        CEntityTagManager.instantiateTagSet();
+        CEntityTagManager.loadSubscriptionIndex();
+        final List<CDeviceSubscription> subscriptions = new ArrayList<>();
+        for (Integer i = 0; i < devicesPerBatch; i++)
+            subscriptions.add(new CDeviceSubscription(registrationId(i), Collections.singletonList(mTag)));
+        if (!CEntityTagManager.subscribeRegistrationIdsToTagsInBulk(subscriptions))
+            throw new IllegalStateException("Devices not subscribed. Aborting.");
+        mDeviceIds = CEntityTagManager.getTagSubscribers(CEntityTagManager.getTag(mTag)).toArray();
+    }
+
+    private static String registrationId(Integer device) {
+        final StringBuilder ret = new StringBuilder("APA91b").append(device).append('_');
+        while (ret.length() < REGISTRATION_ID_LENGTH)
+            ret.append('x');
+        return ret.toString();
+    }
+
+    @Benchmark
+    public byte[] encoder() {
+        return mEncoder.encode(mTag, mDeviceIds);
+    }
+
+    @Benchmark
+    public byte[] jsonTree() throws JSONException {
+        final JSONArray registrationIds = new JSONArray();
+        for (int deviceId : mDeviceIds)
+            registrationIds.put(CEntityTagManager.getRegistrationId(deviceId));
+        final JSONObject body = new JSONObject();
+        body.put("registration_ids", registrationIds);
+        body.put("data", new JSONObject().put("tag", mTag));
+        return body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
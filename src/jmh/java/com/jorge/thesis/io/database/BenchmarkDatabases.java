@@ -0,0 +1,86 @@
+package com.jorge.thesis.io.database;
+
+import org.apache.derby.drda.NetworkServerControl;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+
+/**
+ * Databases of the benchmarks, each one new and under build/jmh.
+ */
+final class BenchmarkDatabases {
+
+    private static final String DATABASES_FOLDER_NAME = "build/jmh";
+    private static final Integer NETWORK_SERVER_PORT = 1528; //Not the default one, which may be in use
+    private static final Long NETWORK_SERVER_START_TIMEOUT_MILLIS = 30000L;
+
+    private BenchmarkDatabases() {
+    }
+
+    /**
+     * @return {@link String} Connection line of a new embedded database.
+     */
+    static String newEmbeddedConnectionLine(String name) {
+        return "jdbc:derby:" + Paths.get(DATABASES_FOLDER_NAME, name + "-" + System.nanoTime()).toString() +
+                ";create=true";
+    }
+
+    /**
+     * @return {@link String} Connection line of a new database of the network server started with
+     * {@link #startNetworkServer()}.
+     */
+    static String newNetworkConnectionLine(String name) {
+        return "jdbc:derby://localhost:" + NETWORK_SERVER_PORT + "/" + Paths.get(DATABASES_FOLDER_NAME, name + "-" +
+                System.nanoTime()).toAbsolutePath().toString() + ";create=true";
+    }
+
+    /**
+     * Starts a Derby network server in this process and waits until it answers.
+     *
+     * @return {@link NetworkServerControl} The server, to be shut down when done.
+     */
+    static NetworkServerControl startNetworkServer() throws Exception {
+        final NetworkServerControl ret = new NetworkServerControl(InetAddress.getByName("localhost"),
+                NETWORK_SERVER_PORT);
+        ret.start(new PrintWriter(System.err, Boolean.TRUE));
+        final Long deadline = System.currentTimeMillis() + NETWORK_SERVER_START_TIMEOUT_MILLIS;
+        while (Boolean.TRUE) {
+            try {
+                ret.ping();
+                return ret;
+            } catch (Exception e) {
+                if (System.currentTimeMillis() > deadline)
+                    throw e;
+                Thread.sleep(100);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return {@link DBDAOSingleton} A DAO on the database, with its tables created.
+     */
+    static DBDAOSingleton newDAO(String connectionLine, Integer poolSize) {
+        final DBDAOSingleton ret = new DBDAOSingleton(connectionLine, poolSize);
+        ret.createEnvironment();
+        return ret;
+    }
+
+    /**
+     * The DAO logs every call, which would be measured too and flood the output of the benchmark.
+     */
+    static void silenceStandardOutput() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
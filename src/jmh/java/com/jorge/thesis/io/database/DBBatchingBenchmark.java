@@ -0,0 +1,83 @@
+package com.jorge.thesis.io.database;
+
+import org.apache.derby.drda.NetworkServerControl;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of subscribing a device to more and more tags at once: through {@link DBDAOSingleton}, which sends all the
+ * tags in a single JDBC batch, against a statement executed once per tag as it was done before. The difference
+ * is in the round trips, so it is measured on the network server too.
+ * <p>
+ * Run with <code>gradle jmh -PjmhArgs=DBBatchingBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBBatchingBenchmark {
+
+    private static final String SUBSCRIPTION_PER_TAG_SQL = "INSERT INTO GCM.SUBSCRIPTIONS (TAG_ID, DEVICE_ID) " +
+            "SELECT TAG_ID, CAST(? AS VARCHAR(254)) FROM GCM.TAGS WHERE TAG_NAME = ?";
+    @Param({"1", "10", "40"})
+    public Integer tagsPerRequest;
+    @Param({"embedded", "network"})
+    public String mode;
+    private final List<String> mTags = new ArrayList<>();
+    private NetworkServerControl mNetworkServer;
+    private DBDAOSingleton mDAO;
+    private DBConnectionPool mBaselinePool;
+    private Integer mNextDevice = 0;
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws Exception {
+        BenchmarkDatabases.silenceStandardOutput();
+        final String connectionLine;
+        if (mode.contentEquals("network")) {
+            mNetworkServer = BenchmarkDatabases.startNetworkServer();
+            connectionLine = BenchmarkDatabases.newNetworkConnectionLine("batching");
+        } else
+            connectionLine = BenchmarkDatabases.newEmbeddedConnectionLine("batching");
+        mDAO = BenchmarkDatabases.newDAO(connectionLine, 1);
+        mBaselinePool = new DBConnectionPool(connectionLine, 1);
+        for (Integer i = 0; i < tagsPerRequest; i++) {
+            mTags.add("tag_" + i);
+            mDAO.addTag("tag_" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopNetworkServer() throws Exception {
+        if (mNetworkServer != null)
+            mNetworkServer.shutdown();
+    }
+
+    @Benchmark
+    public Boolean subscribe() {
+        return mDAO.addSubscriptions("device-" + mNextDevice++, mTags);
+    }
+
+    @Benchmark
+    public Integer subscribePerTag() throws SQLException {
+        final String deviceId = "device-per-tag-" + mNextDevice++;
+        Integer ret = 0;
+        try (DBConnectionPool.PooledConnection connection = mBaselinePool.acquire();
+             PreparedStatement insertion = connection.getConnection().prepareStatement(SUBSCRIPTION_PER_TAG_SQL)) {
+            connection.beginTransaction();
+            for (String tag : mTags) {
+                insertion.setString(1, deviceId);
+                insertion.setString(2, tag);
+                ret += insertion.executeUpdate();
+            }
+            connection.commit();
+        }
+        return ret;
+    }
+}
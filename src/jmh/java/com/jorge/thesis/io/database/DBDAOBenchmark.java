@@ -0,0 +1,127 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CEntityTags;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a single subscription, unsubscription and subscriber lookup through {@link DBDAOSingleton}, with its
+ * bound parameters and statements prepared once per connection, against the way it was done before: SQL with the
+ * values concatenated in, prepared again on every call. Both run on the same embedded database, so that the
+ * difference is not hidden behind network round trips.
+ * <p>
+ * Run with <code>gradle jmh -PjmhArgs=DBDAOBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBDAOBenchmark {
+
+    private static final String TAG = "news";
+    /**
+     * Enough subscriptions for the unsubscriptions of an iteration never to run out of them.
+     */
+    private static final Integer SUBSCRIPTIONS_PER_ITERATION = 20000;
+    private static final Integer LOOKED_UP_SUBSCRIBERS = 10;
+    private static final String SUBSCRIPTIONS_TABLE_NAME = "GCM.SUBSCRIPTIONS", TAGS_TABLE_NAME = "GCM.TAGS";
+    private final List<String> mTags = Collections.singletonList(TAG);
+    private final CEntityTagManager.CEntityTag mLookedUpTag = CEntityTags.create("looked_up");
+    private DBDAOSingleton mDAO;
+    private DBConnectionPool mBaselinePool;
+    private Integer mIteration = 0, mNextDevice;
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws SQLException {
+        BenchmarkDatabases.silenceStandardOutput();
+        final String connectionLine = BenchmarkDatabases.newEmbeddedConnectionLine("dao");
+        mDAO = BenchmarkDatabases.newDAO(connectionLine, 1);
+        mBaselinePool = new DBConnectionPool(connectionLine, 1);
+        for (Integer i = 0; i < LOOKED_UP_SUBSCRIBERS; i++)
+            mDAO.addSubscriptions("subscriber-" + i, Collections.singletonList(mLookedUpTag.getName()));
+    }
+
+    /**
+     * Gives every iteration devices of its own, subscribed beforehand for the unsubscriptions.
+     */
+    @Setup(Level.Iteration)
+    public void subscribeDevicesOfIteration() {
+        mIteration++;
+        mNextDevice = 0;
+        final List<CDeviceSubscription> subscriptions = new ArrayList<>();
+        for (Integer i = 0; i < SUBSCRIPTIONS_PER_ITERATION; i++)
+            subscriptions.add(new CDeviceSubscription(subscribedDevice(i), mTags));
+        mDAO.addSubscriptionsInBulk(subscriptions);
+    }
+
+    private String nextDevice() {
+        return "device-" + mIteration + "-" + mNextDevice++;
+    }
+
+    private String subscribedDevice(Integer index) {
+        return "subscribed-" + mIteration + "-" + (index % SUBSCRIPTIONS_PER_ITERATION);
+    }
+
+    @Benchmark
+    public Boolean subscribe() {
+        return mDAO.addSubscriptions(nextDevice(), mTags);
+    }
+
+    @Benchmark
+    public Integer subscribeBefore() throws SQLException {
+        return executeInTransaction("INSERT INTO " + SUBSCRIPTIONS_TABLE_NAME + " (TAG_ID, DEVICE_ID) SELECT " +
+                "TAG_ID, '" + nextDevice() + "' FROM " + TAGS_TABLE_NAME + " WHERE TAG_NAME = '" + TAG + "'");
+    }
+
+    @Benchmark
+    public Boolean unsubscribe() {
+        return mDAO.removeSubscriptions(subscribedDevice(mNextDevice++), mTags);
+    }
+
+    @Benchmark
+    public Integer unsubscribeBefore() throws SQLException {
+        return executeInTransaction("DELETE FROM " + SUBSCRIPTIONS_TABLE_NAME + " WHERE DEVICE_ID = '" +
+                subscribedDevice(mNextDevice++) + "' AND TAG_ID = (SELECT TAG_ID FROM " +
+                TAGS_TABLE_NAME + " WHERE TAG_NAME = '" + TAG + "')");
+    }
+
+    @Benchmark
+    public Boolean lookUpSubscribers(Blackhole blackhole) {
+        return mDAO.forEachSubscribedRegistrationId(mLookedUpTag, blackhole::consume);
+    }
+
+    @Benchmark
+    public void lookUpSubscribersBefore(Blackhole blackhole) throws SQLException {
+        try (DBConnectionPool.PooledConnection connection = mBaselinePool.acquire();
+             PreparedStatement selection = connection.getConnection().prepareStatement("SELECT DEVICE_ID FROM " +
+                     SUBSCRIPTIONS_TABLE_NAME + " WHERE TAG_ID = (SELECT TAG_ID FROM " + TAGS_TABLE_NAME +
+                     " WHERE TAG_NAME = '" + mLookedUpTag.getName() + "')");
+             ResultSet resultSet = selection.executeQuery()) {
+            while (resultSet.next())
+                blackhole.consume(resultSet.getString(1));
+        }
+    }
+
+    private Integer executeInTransaction(String sql) throws SQLException {
+        try (DBConnectionPool.PooledConnection connection = mBaselinePool.acquire()) {
+            connection.beginTransaction();
+            try (PreparedStatement statement = connection.getConnection().prepareStatement(sql)) {
+                final Integer ret = statement.executeUpdate();
+                connection.commit();
+                return ret;
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency of a durable subscription when it is written to the database right away, against when it is appended to
+ * {@link DBJournalSingleton} and acknowledged once the journal is forced, with the applier moving it to the database
+ * in the background. Many clients subscribe at once, so that the appenders share forces as they would in the server.
+ * <p>
+ * Run with <code>gradle jmh -PjmhArgs=DBJournalBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class DBJournalBenchmark {
+
+    private static final Integer POOL_SIZE = 8;
+    private static final List<String> TAGS = Arrays.asList("news", "sports", "weather");
+    @Param({"synchronous", "write_behind"})
+    public String mode;
+    private DBDAOSingleton mDAO;
+    private DBJournalSingleton mJournal;
+
+    @Setup(Level.Trial)
+    public void createDatabase() {
+        BenchmarkDatabases.silenceStandardOutput();
+        mDAO = BenchmarkDatabases.newDAO(BenchmarkDatabases.newEmbeddedConnectionLine("journal"), POOL_SIZE);
+        if (mode.contentEquals("write_behind")) {
+            mJournal = new DBJournalSingleton(Boolean.TRUE, Paths.get("build", "jmh", "journal-" + System.nanoTime(),
+                    "subscriptions.journal"), mDAO);
+            mJournal.replay();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger CLIENT_COUNT = new AtomicInteger();
+        private final Integer mClientId = CLIENT_COUNT.incrementAndGet();
+        private Integer mRequestCount = 0;
+
+        private String nextDeviceId() {
+            return "device-" + mClientId + "-" + mRequestCount++;
+        }
+    }
+
+    @Benchmark
+    public Boolean subscribe(Client client) {
+        if (mJournal == null)
+            return mDAO.addSubscriptions(client.nextDeviceId(), TAGS);
+        return mJournal.append(Collections.singletonList(CSubscriptionChange.subscribe(client.nextDeviceId(), TAGS)));
+    }
+}
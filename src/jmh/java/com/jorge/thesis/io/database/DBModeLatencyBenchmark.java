@@ -0,0 +1,66 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CEntityTags;
+import org.apache.derby.drda.NetworkServerControl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of a subscription and of a subscriber lookup with the database embedded, against with the database
+ * behind a Derby network server. The network server runs in the process of the benchmark, so every call pays
+ * the loopback round trips and the protocol, but no other network.
+ * <p>
+ * Run with <code>gradle jmh -PjmhArgs=DBModeLatencyBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DBModeLatencyBenchmark {
+
+    private static final Integer LOOKED_UP_SUBSCRIBERS = 100;
+    private final List<String> mTags = Collections.singletonList("news");
+    private final CEntityTagManager.CEntityTag mLookedUpTag = CEntityTags.create("looked_up");
+    @Param({"embedded", "network"})
+    public String mode;
+    private NetworkServerControl mNetworkServer;
+    private DBDAOSingleton mDAO;
+    private Integer mNextDevice = 0;
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws Exception {
+        BenchmarkDatabases.silenceStandardOutput();
+        final String connectionLine;
+        if (mode.contentEquals("network")) {
+            mNetworkServer = BenchmarkDatabases.startNetworkServer();
+            connectionLine = BenchmarkDatabases.newNetworkConnectionLine("mode");
+        } else
+            connectionLine = BenchmarkDatabases.newEmbeddedConnectionLine("mode");
+        mDAO = BenchmarkDatabases.newDAO(connectionLine, 1);
+        for (Integer i = 0; i < LOOKED_UP_SUBSCRIBERS; i++)
+            mDAO.addSubscriptions("subscriber-" + i, Collections.singletonList(mLookedUpTag.getName()));
+    }
+
+    @TearDown(Level.Trial)
+    public void stopNetworkServer() throws Exception {
+        if (mNetworkServer != null)
+            mNetworkServer.shutdown();
+    }
+
+    @Benchmark
+    public Boolean subscribe() {
+        return mDAO.addSubscriptions("device-" + mNextDevice++, mTags);
+    }
+
+    @Benchmark
+    public Boolean lookUpSubscribers(Blackhole blackhole) {
+        return mDAO.forEachSubscribedRegistrationId(mLookedUpTag, blackhole::consume);
+    }
+}
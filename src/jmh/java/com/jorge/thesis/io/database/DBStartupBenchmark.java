@@ -0,0 +1,78 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTags;
+import org.apache.derby.drda.NetworkServerControl;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from nothing to a store ready to serve, as on startup: booting the database, filling the connection pool,
+ * creating the environment and reading every subscription, which is what the subscription index is loaded from.
+ * The database is shut down before every measurement, so that it is booted again in it, embedded or by the network
+ * server.
+ * <p>
+ * Run with <code>gradle jmh -PjmhArgs=DBStartupBenchmark</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DBStartupBenchmark {
+
+    private static final Integer POOL_SIZE = 8, DEVICES = 100000;
+    private static final List<String> TAGS = Arrays.asList("news", "sports", "weather");
+    private static final String CREATE_ATTRIBUTE = ";create=true", SHUTDOWN_ATTRIBUTE = ";shutdown=true";
+    private static final String SHUT_DOWN_STATE = "08006";
+    @Param({"embedded", "network"})
+    public String mode;
+    private NetworkServerControl mNetworkServer;
+    private String mConnectionLine;
+
+    @Setup(Level.Trial)
+    public void createDatabase() throws Exception {
+        BenchmarkDatabases.silenceStandardOutput();
+        if (mode.contentEquals("network")) {
+            mNetworkServer = BenchmarkDatabases.startNetworkServer();
+            mConnectionLine = BenchmarkDatabases.newNetworkConnectionLine("startup");
+        } else
+            mConnectionLine = BenchmarkDatabases.newEmbeddedConnectionLine("startup");
+        final List<CDeviceSubscription> subscriptions = new ArrayList<>(DEVICES);
+        for (Integer i = 0; i < DEVICES; i++)
+            subscriptions.add(new CDeviceSubscription("device-" + i, TAGS));
+        BenchmarkDatabases.newDAO(mConnectionLine, 1).addSubscriptionsInBulk(subscriptions);
+    }
+
+    @Setup(Level.Iteration)
+    public void shutDownDatabase() throws SQLException {
+        try {
+            DriverManager.getConnection(mConnectionLine.replace(CREATE_ATTRIBUTE, SHUTDOWN_ATTRIBUTE));
+        } catch (SQLException e) {
+            if (!SHUT_DOWN_STATE.equals(e.getSQLState())) //A clean shutdown always throws this one
+                throw e;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stopNetworkServer() throws Exception {
+        if (mNetworkServer != null)
+            mNetworkServer.shutdown();
+    }
+
+    @Benchmark
+    public DBDAOSingleton start(Blackhole blackhole) {
+        final DBDAOSingleton ret = BenchmarkDatabases.newDAO(mConnectionLine, POOL_SIZE);
+        for (String tag : ret.getTagsNow())
+            ret.forEachSubscribedRegistrationId(CEntityTags.create(tag), blackhole::consume);
+        return ret;
+    }
+}
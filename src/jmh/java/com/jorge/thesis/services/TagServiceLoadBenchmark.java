@@ -0,0 +1,120 @@
+package com.jorge.thesis.services;
+
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.io.store.SubscriptionStoreSingleton;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load test of {@link TagService}: many clients subscribing devices and reading the tag list at once, against
+ * servers with more and more Jetty worker threads. With requests handled concurrently, the throughput must go up
+ * with the workers, as they wait for the database at the same time, until the cores or the disk run out.
+ * <p>
+ * Subscriptions go to an embedded database under build/jmh (see the resource /database_connection_line of the
+ * benchmarks). Run with <code>gradle jmh -PjmhArgs=TagServiceLoad</code>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@Threads(32)
+public class TagServiceLoadBenchmark {
+
+    private static final Integer DEVICES_PER_CLIENT = 10000;
+    private static final String[] TAG_LISTS = {"news", "news-sports", "sports-weather-traffic", "weather"};
+    /**
+     * The acceptor of the connector and its selector take a thread of the pool each.
+     */
+    private static final Integer CONNECTOR_THREADS = 2;
+    @Param({"1", "2", "4", "8"})
+    public Integer workerThreads;
+    private Server mServer;
+    private String mUrl;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        SubscriptionStoreSingleton.getInstance().createEnvironment();
+        CEntityTagManager.instantiateTagSet();
+        CEntityTagManager.loadSubscriptionIndex();
+
+        final QueuedThreadPool threadPool = new QueuedThreadPool(workerThreads + CONNECTOR_THREADS);
+        threadPool.setMinThreads(workerThreads + CONNECTOR_THREADS);
+        final SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptors(1);
+        mServer = new Server();
+        mServer.setThreadPool(threadPool);
+        mServer.addConnector(connector);
+        final ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new TagService()), "/tags");
+        mServer.setHandler(context);
+        mServer.start();
+        mUrl = "http://127.0.0.1:" + connector.getLocalPort() + "/tags";
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        mServer.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private static final AtomicInteger CLIENT_COUNT = new AtomicInteger();
+        private final Integer mClientId = CLIENT_COUNT.incrementAndGet();
+        private Integer mRequestCount = 0;
+
+        private String nextDeviceId() {
+            return "device-" + mClientId + "-" + (mRequestCount++ % DEVICES_PER_CLIENT);
+        }
+
+        private String nextTags() {
+            return TAG_LISTS[mRequestCount % TAG_LISTS.length];
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Integer subscribe(Client client) throws IOException {
+        return send(mUrl + "?type=subscribe&id=" + client.nextDeviceId() + "&tags=" + client.nextTags(), "POST");
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public Integer list() throws IOException {
+        return send(mUrl + "?type=list", "GET");
+    }
+
+    /**
+     * @return {@link Integer} The status of the response, whose body is read whole so the connection is kept alive.
+     */
+    private static Integer send(String url, String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        final Integer ret = connection.getResponseCode();
+        if (ret >= HttpURLConnection.HTTP_BAD_REQUEST)
+            throw new IllegalStateException("Request " + url + " answered with " + ret + ". Aborting.");
+        try (InputStream body = connection.getInputStream()) {
+            final byte[] buffer = new byte[4096];
+            //noinspection StatementWithEmptyBody
+            while (body.read(buffer) != -1) ;
+        }
+        return ret;
+    }
+}
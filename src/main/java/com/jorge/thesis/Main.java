@@ -1,7 +1,10 @@
 package com.jorge.thesis;
 
 import com.jorge.thesis.datamodel.CEntityTagManager;
-import com.jorge.thesis.io.database.DBDAOSingleton;
+import com.jorge.thesis.io.database.DBJournalSingleton;
+import com.jorge.thesis.io.store.SubscriptionStoreSingleton;
+import com.jorge.thesis.services.GCMStandInService;
+import com.jorge.thesis.services.MetricsService;
 import com.jorge.thesis.services.TagService;
 import com.jorge.thesis.util.EnvVars;
 import org.eclipse.jetty.server.Server;
@@ -26,14 +29,18 @@ public class Main {
             webPort = DEFAULT_PORT;
         }
 
-        DBDAOSingleton.getInstance().createDatabaseEnvironment();
+        SubscriptionStoreSingleton.getInstance().createEnvironment();
+        System.out.println("Applied " + DBJournalSingleton.getInstance().replay() + " pending subscription changes" +
+                " from the journal.");
 
         if (CEntityTagManager.instantiateTagSet()) {
             System.out.println("Initialised tags: ");
-            for (Object x : CEntityTagManager.CEntityTag.values())
+            for (Object x : CEntityTagManager.getAllTags())
                 System.out.println(x);
         } else System.out.println("No tags were loaded");
 
+        System.out.println("Indexed subscriptions of " + CEntityTagManager.loadSubscriptionIndex() + " devices.");
+
         Server server = new Server(webPort);
         ServletContextHandler context = new ServletContextHandler(
                 ServletContextHandler.SESSIONS);
@@ -41,6 +48,14 @@ public class Main {
         server.setHandler(context);
         context.addServlet(new ServletHolder(new TagService()),
                 "/tags");
+        context.addServlet(new ServletHolder(new MetricsService()),
+                "/metrics");
+        if (EnvVars.GCM_STAND_IN_CAPACITY != null) {
+            context.addServlet(new ServletHolder(new GCMStandInService(Integer.valueOf(EnvVars
+                    .GCM_STAND_IN_CAPACITY))), "/gcm/send");
+            System.out.println("GCM stand-in enabled at /gcm/send, serving " + EnvVars.GCM_STAND_IN_CAPACITY + " " +
+                    "requests at once.");
+        }
 
         System.out.print("Requesting server start...");
         server.start();
@@ -0,0 +1,25 @@
+package com.jorge.thesis.datamodel;
+
+import java.util.List;
+
+/**
+ * A device along with the tags it is subscribed (or wants to be subscribed) to.
+ */
+public final class CDeviceSubscription {
+
+    private final String mDeviceId;
+    private final List<String> mTags;
+
+    public CDeviceSubscription(String _deviceId, List<String> _tags) {
+        mDeviceId = _deviceId;
+        mTags = _tags;
+    }
+
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    public List<String> getTags() {
+        return mTags;
+    }
+}
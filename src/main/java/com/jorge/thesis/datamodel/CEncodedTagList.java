@@ -0,0 +1,58 @@
+package com.jorge.thesis.datamodel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Immutable, already encoded version of the tag list response. A new one is built only when the tag set changes,
+ * so that serving the list is just copying bytes.
+ */
+public final class CEncodedTagList {
+
+    /**
+     * Versions restart from zero on every launch, so the ETag also carries the launch time to avoid a client
+     * matching a list from a previous run.
+     */
+    private static final String ETAG_PREFIX = Long.toHexString(System.currentTimeMillis());
+    private final Long mVersion;
+    private final String mETag;
+    private final byte[] mPlainBody, mGzipBody;
+
+    CEncodedTagList(Long _version, String _json) {
+        mVersion = _version;
+        mETag = "\"" + ETAG_PREFIX + "-" + _version + "\"";
+        mPlainBody = _json.getBytes(StandardCharsets.UTF_8);
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream(mPlainBody.length);
+        try (GZIPOutputStream gzipStream = new GZIPOutputStream(gzipped)) {
+            gzipStream.write(mPlainBody);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            //Will never happen, the stream is in memory
+        }
+        mGzipBody = gzipped.toByteArray();
+    }
+
+    public Long getVersion() {
+        return mVersion;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * The returned array is shared. Do not modify it.
+     */
+    public byte[] getPlainBody() {
+        return mPlainBody;
+    }
+
+    /**
+     * The returned array is shared. Do not modify it.
+     */
+    public byte[] getGzipBody() {
+        return mGzipBody;
+    }
+}
@@ -1,13 +1,16 @@
 package com.jorge.thesis.datamodel;
 
+import com.jorge.thesis.gcm.CSyncStatus;
 import com.jorge.thesis.gcm.GCMCommunicatorSingleton;
-import com.jorge.thesis.io.database.DBDAOSingleton;
-import com.jorge.thesis.io.enumrefl.EnumBuster;
+import com.jorge.thesis.io.database.DBJournalSingleton;
 import com.jorge.thesis.io.file.FileReadUtils;
+import com.jorge.thesis.io.store.SubscriptionStoreSingleton;
+import com.jorge.thesis.util.StripedLocks;
 import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -15,13 +18,39 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Pattern;
 
 public abstract class CEntityTagManager {
 
     private static final String[] MINIMUM_TAG_SET = {}; //By default there are no tags
+    private static final Pattern TAG_FORMAT_PATTERN = Pattern.compile("[a-z0-9_]+");
+    /**
+     * Only taken to create tags, so that a tag is in the database before anybody can find it in the registry.
+     * <p>
+     * Lock order: it may be taken while holding {@link #DEVICE_LOCKS}, as subscriptions register the unknown tags
+     * they index, so no device may ever be locked while holding it.
+     */
     private static final Object TAG_ACCESS_LOCK = new Object();
+    private static final CTagRegistry TAG_REGISTRY = new CTagRegistry();
+    private static final CRegistrationIdDictionary REGISTRATION_ID_DICTIONARY = new CRegistrationIdDictionary();
+    private static final CSubscriptionIndex SUBSCRIPTION_INDEX = new CSubscriptionIndex();
+    /**
+     * Changes to the subscriptions of the same device are serialised, from the write to the store (or the journal)
+     * to the update of the index, so that both get them in the same order. Changes for different devices run in
+     * parallel.
+     * <p>
+     * Lock order: the stripes, in the order {@link StripedLocks#getAll(Collection)} returns them, and then
+     * {@link #TAG_ACCESS_LOCK} if a tag has to be created.
+     */
+    private static final StripedLocks DEVICE_LOCKS = new StripedLocks(Runtime.getRuntime().availableProcessors() * 16);
+    /**
+     * Most devices of a bulk subscription locked and written at once.
+     */
+    private static final Integer BULK_LOCK_GROUP_SIZE = 256;
     private static Path DEFAULT_TAGS_FILE_PATH;
+    private static volatile CEncodedTagList mEncodedTagList = new CEncodedTagList(0L,
+            generateAllCurrentTagsAsJSONArray());
 
     private static void init() {
         synchronized (TAG_ACCESS_LOCK) {
@@ -41,130 +70,427 @@ public abstract class CEntityTagManager {
             init();
 
             //Load tags from configuration file or minimum tag set
-            final EnumBuster<CEntityTag> buster =
-                    new EnumBuster<>(CEntityTag.class,
-                            CEntityTagManager.class);
             final Path tagSetFilePath = (tagSetFilePaths == null || tagSetFilePaths.length == 0) ?
                     DEFAULT_TAGS_FILE_PATH
                     : tagSetFilePaths[0];
 
             try {
                 final List<String> tags = FileReadUtils.readCSVFile(tagSetFilePath);
-                createTagsFromStringList(buster, tags);
+                createTagsFromStringList(tags);
             } catch (FileNotFoundException e) {
                 System.out.println(MessageFormat.format("Tags file {0} not found. Loading minimum tags {1}",
                         tagSetFilePath.toAbsolutePath(), Arrays.toString(MINIMUM_TAG_SET)));
-                instantiateDefaultTagSet(buster);
+                instantiateDefaultTagSet();
             }
 
             //Add externally-loaded tags to the database
-            final CEntityTag[] values = CEntityTag.values();
-            for (CEntityTag x : values)
-                DBDAOSingleton.getInstance().addTag(x.name());
+            for (CEntityTag x : TAG_REGISTRY.snapshot())
+                SubscriptionStoreSingleton.getInstance().addTag(x.getName());
 
             //Load tags from the database
-            createTagsFromStringList(buster, DBDAOSingleton.getInstance().getTagsNow());
+            createTagsFromStringList(SubscriptionStoreSingleton.getInstance().getTagsNow());
 
-            return CEntityTag.values().length > 0; //Weak success condition
+            return TAG_REGISTRY.size() > 0; //Weak success condition
         }
     }
 
-    private static void instantiateDefaultTagSet(EnumBuster<CEntityTag> buster) {
+    private static void instantiateDefaultTagSet() {
         synchronized (TAG_ACCESS_LOCK) {
-            createTagsFromStringList(buster, Arrays.asList(MINIMUM_TAG_SET));
+            createTagsFromStringList(Arrays.asList(MINIMUM_TAG_SET));
         }
     }
 
     /**
+     * Registers the tags (not in the database).
+     *
      * @return {@link Integer} The amount of tags actually added.
      */
-    public static Integer createTagsFromStringList(EnumBuster<CEntityTag> buster, List<String> tags) {
+    private static Integer createTagsFromStringList(List<String> tags) {
         synchronized (TAG_ACCESS_LOCK) {
-            final List<String> nonDuplicateTags = new ArrayList<>();
-            final Pattern tagFormatPattern = Pattern.compile("[a-z0-9_]+");
-            for (String uniqueTag : tags) {
-                uniqueTag = uniqueTag.trim().toLowerCase(Locale.ENGLISH);
-                if (nonDuplicateTags.contains(uniqueTag) && !tagFormatPattern.matcher(uniqueTag).matches())
-                    continue; //Eliminate duplicates or tags that don't come in the proper format
-                nonDuplicateTags.add(uniqueTag);
+            final Integer previousSize = TAG_REGISTRY.size();
+            for (String tag : tags) {
+                tag = tag.trim().toLowerCase(Locale.ENGLISH);
+                if (!TAG_FORMAT_PATTERN.matcher(tag).matches())
+                    continue; //Eliminate tags that don't come in the proper format
+                TAG_REGISTRY.intern(tag); //Duplicates are ignored by the registry
             }
 
-            int ret = 0;
-
-            for (String tag : nonDuplicateTags) {
-                if (!tag.isEmpty()) {
-                    CEntityTag thisOneAsEntityTag = buster.make(tag);
-                    buster.addByValue(thisOneAsEntityTag);
-                    ret++;
-                }
-            }
+            final Integer ret = TAG_REGISTRY.size() - previousSize;
+            if (ret > 0)
+                mEncodedTagList = new CEncodedTagList(mEncodedTagList.getVersion() + 1,
+                        generateAllCurrentTagsAsJSONArray());
 
             return ret;
         }
     }
 
+    /**
+     * @return {@link List} Every known tag, in order of creation. The list never changes once returned.
+     */
+    public static List<CEntityTag> getAllTags() {
+        return TAG_REGISTRY.snapshot();
+    }
 
-    public static synchronized String generateAllCurrentTagsAsJSONArray() {
-        synchronized (TAG_ACCESS_LOCK) {
-            JSONObject ret = new JSONObject();
-            JSONArray array = new JSONArray();
+    /**
+     * @return {@link CEntityTag} The tag with this name, or <value>null</value> if it doesn't exist.
+     */
+    public static CEntityTag getTag(String name) {
+        return TAG_REGISTRY.get(name);
+    }
 
-            array.put(CEntityTagManager.CEntityTag.values());
+    /**
+     * @return {@link CEncodedTagList} The tag list as it must be sent to devices. It is only rebuilt when the tag
+     * set changes.
+     */
+    public static CEncodedTagList getEncodedTagList() {
+        return mEncodedTagList;
+    }
 
-            try {
-                ret.put("tags", array);
-            } catch (JSONException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-            }
+    private static String generateAllCurrentTagsAsJSONArray() {
+        JSONObject ret = new JSONObject();
+        JSONArray array = new JSONArray();
+
+        final List<CEntityTag> tags = TAG_REGISTRY.snapshot();
+        final String[] names = new String[tags.size()];
+        for (Integer i = 0; i < names.length; i++)
+            names[i] = tags.get(i).getName();
+        array.put(names);
 
-            return ret.toString();
+        try {
+            ret.put("tags", array);
+        } catch (JSONException e) {
+            e.printStackTrace(System.err);
+            //Should never happen
         }
+
+        return ret.toString();
     }
 
-    public static synchronized void createTagSyncRequest(String s) {
-        synchronized (TAG_ACCESS_LOCK) {
-            final EnumBuster<CEntityTagManager.CEntityTag> buster =
-                    new EnumBuster<>(CEntityTagManager.CEntityTag.class,
-                            CEntityTagManager.class);
-
-            final List<String> l = new LinkedList<>();
-            l.add(s);
-
-            if (CEntityTagManager.createTagsFromStringList(buster, l) == 1) { //Return is amount of newly added tags
-                if (DBDAOSingleton.getInstance().addTag(s)) {
-                    CEntityTag tag = null;
-
-                    for (CEntityTag x : CEntityTag.values()) { //Using valueOf instead won't find the tag at times
-                        if (s.contentEquals(x.name())) {
-                            tag = x;
-                            break;
-                        }
-                    }
-
-                    if (tag == null) {
-                        System.out.println("Error when adding tag " + s + " to database (not found). Skipping.");
-                        return;
-                    }
-
-                    GCMCommunicatorSingleton.getInstance().queueTagSyncRequest(tag);
-                } else
+    /**
+     * Makes sure that the tag exists and queues the sync of its subscribers.
+     *
+     * @param s      {@link String} Name of the tag.
+     * @param status {@link CSyncStatus} Status of the sync this tag belongs to.
+     */
+    public static void createTagSyncRequest(String s, CSyncStatus status) {
+        CEntityTag tag = TAG_REGISTRY.get(s);
+
+        if (tag == null) {
+            synchronized (TAG_ACCESS_LOCK) {
+                if (!SubscriptionStoreSingleton.getInstance().addTag(s)) {
                     System.out.println("Error when adding tag " + s + " to database. Skipping.");
+                    return;
+                }
+                createTagsFromStringList(Collections.singletonList(s));
+                tag = TAG_REGISTRY.get(s);
+            }
+
+            if (tag == null) {
+                System.out.println("Error when adding tag " + s + " (not properly formatted). Skipping.");
+                return;
             }
         }
+
+        GCMCommunicatorSingleton.getInstance().queueTagSyncRequest(tag, status);
+    }
+
+    /**
+     * Fills the in-memory subscription index from the database. Must be called once the tag set is instantiated
+     * and before any subscription changes, so it takes no device locks.
+     *
+     * @return {@link Integer} The amount of devices found.
+     */
+    public static Integer loadSubscriptionIndex() {
+        final List<Integer> tagIds = new ArrayList<>();
+        for (CEntityTag tag : TAG_REGISTRY.snapshot()) {
+            SubscriptionStoreSingleton.getInstance().forEachSubscribedRegistrationId(tag, registrationId -> SUBSCRIPTION_INDEX
+                    .add(tag.getId(), REGISTRATION_ID_DICTIONARY.getOrAssign(registrationId)));
+            tagIds.add(tag.getId());
+        }
+        SUBSCRIPTION_INDEX.optimise(tagIds);
+        return REGISTRATION_ID_DICTIONARY.size();
     }
 
-    public static synchronized List<String> getTagSubscribedRegistrationIds(CEntityTag tag) {
-        return DBDAOSingleton.getInstance().getSubscribedRegistrationIds(tag);
+    /**
+     * @return {@link RoaringBitmap} The dictionary ids of the current subscribers of the tag. It is a copy, so it
+     * doesn't change if the subscriptions do.
+     */
+    public static RoaringBitmap getTagSubscribers(CEntityTag tag) {
+        return SUBSCRIPTION_INDEX.getSubscribers(tag.getId());
+    }
+
+    /**
+     * @return {@link String} The registration id that has this dictionary id, or <value>null</value> if its device
+     * is gone and it has been dropped from the dictionary.
+     */
+    public static String getRegistrationId(Integer deviceId) {
+        return REGISTRATION_ID_DICTIONARY.get(deviceId);
+    }
+
+    /**
+     * Copies the UTF-8 bytes of the registration id that has this dictionary id, if they fit in the destination.
+     *
+     * @return Length in bytes of the registration id, or -1 if there is none with this dictionary id.
+     */
+    public static int copyRegistrationId(int deviceId, byte[] destination) {
+        return REGISTRATION_ID_DICTIONARY.copy(deviceId, destination);
+    }
+
+    /**
+     * Makes sure that no registration id is dropped from the dictionary until the returned lock is unlocked, so
+     * that those of a batch can be checked and then copied.
+     *
+     * @return {@link Lock} The lock to unlock once done, already taken.
+     */
+    public static Lock holdRegistrationIds() {
+        return REGISTRATION_ID_DICTIONARY.holdOffCompaction();
+    }
+
+    /**
+     * @return {@link List} The locks of the devices, already taken. They must be given to
+     * {@link #unlockDevices(List)} once the change is written to both the store and the index.
+     */
+    private static List<Lock> lockDevices(Collection<String> deviceIds) {
+        final List<Lock> ret = DEVICE_LOCKS.getAll(deviceIds);
+        for (Lock lock : ret)
+            lock.lock();
+        return ret;
+    }
+
+    private static void unlockDevices(List<Lock> locks) {
+        for (Lock lock : locks)
+            lock.unlock();
     }
 
     public static Boolean subscribeRegistrationIdToTags(String deviceId, List<String> tags) {
-        return DBDAOSingleton.getInstance().addSubscriptions(deviceId, tags);
+        final List<Lock> locks = lockDevices(Collections.singletonList(deviceId));
+        try {
+            final Boolean written = DBJournalSingleton.getInstance().isEnabled() ? DBJournalSingleton.getInstance()
+                    .append(Collections.singletonList(CSubscriptionChange.subscribe(deviceId, tags))) :
+                    SubscriptionStoreSingleton.getInstance().addSubscriptions(deviceId, tags);
+            if (!written)
+                return Boolean.FALSE;
+            indexSubscriptions(deviceId, tags);
+            return Boolean.TRUE;
+        } finally {
+            unlockDevices(locks);
+        }
+    }
+
+    /**
+     * Subscribes the devices in groups of at most {@link #BULK_LOCK_GROUP_SIZE}, each one written in its own
+     * transaction under the locks of its own devices, so that a large import only holds up the requests of a few
+     * devices at a time. The groups are made of devices that share stripes (see
+     * {@link StripedLocks#partition(List, java.util.function.Function, Integer)}), so each takes few of them.
+     *
+     * @return {@link Boolean} FALSE as soon as a group is not written. The groups before it stay applied, which is
+     * harmless if they are subscribed again, as existing subscriptions are skipped.
+     */
+    public static Boolean subscribeRegistrationIdsToTagsInBulk(List<CDeviceSubscription> subscriptions) {
+        for (List<CDeviceSubscription> group : DEVICE_LOCKS.partition(subscriptions, CDeviceSubscription::getDeviceId,
+                BULK_LOCK_GROUP_SIZE))
+            if (!subscribeLockGroup(group))
+                return Boolean.FALSE;
+        return Boolean.TRUE;
+    }
+
+    private static Boolean subscribeLockGroup(List<CDeviceSubscription> group) {
+        final List<String> deviceIds = new ArrayList<>(group.size());
+        for (CDeviceSubscription subscription : group)
+            deviceIds.add(subscription.getDeviceId());
+        final List<Lock> locks = lockDevices(deviceIds);
+        try {
+            final List<CDeviceSubscription> subscriptions = withoutIndexedTags(group);
+            if (subscriptions.isEmpty())
+                return Boolean.TRUE;
+            final Boolean written;
+            if (DBJournalSingleton.getInstance().isEnabled()) {
+                final List<CSubscriptionChange> changes = new ArrayList<>(subscriptions.size());
+                for (CDeviceSubscription subscription : subscriptions)
+                    changes.add(CSubscriptionChange.subscribe(subscription.getDeviceId(), subscription.getTags()));
+                written = DBJournalSingleton.getInstance().append(changes);
+            } else
+                written = SubscriptionStoreSingleton.getInstance().addSubscriptionsInBulk(subscriptions);
+            if (!written)
+                return Boolean.FALSE;
+            for (CDeviceSubscription subscription : subscriptions)
+                indexSubscriptions(subscription.getDeviceId(), subscription.getTags());
+            return Boolean.TRUE;
+        } finally {
+            unlockDevices(locks);
+        }
     }
 
     public static Boolean unsubscribeRegistrationIdFromTags(String deviceId, List<String> tags) {
-        return DBDAOSingleton.getInstance().removeSubscriptions(deviceId, tags);
+        final List<Lock> locks = lockDevices(Collections.singletonList(deviceId));
+        try {
+            final Boolean written = DBJournalSingleton.getInstance().isEnabled() ? DBJournalSingleton.getInstance()
+                    .append(Collections.singletonList(CSubscriptionChange.unsubscribe(deviceId, tags))) :
+                    SubscriptionStoreSingleton.getInstance().removeSubscriptions(deviceId, tags);
+            if (!written)
+                return Boolean.FALSE;
+            final Integer id = REGISTRATION_ID_DICTIONARY.get(deviceId);
+            if (id != null)
+                for (String tagName : tags) {
+                    final CEntityTag tag = TAG_REGISTRY.get(tagName);
+                    if (tag != null)
+                        SUBSCRIPTION_INDEX.remove(tag.getId(), id);
+                }
+            return Boolean.TRUE;
+        } finally {
+            unlockDevices(locks);
+        }
     }
 
-    public enum CEntityTag {}
+    /**
+     * Applies registration id updates and removals, such as those requested by a GCM response, all at once. Both the
+     * old and the new registration ids are locked meanwhile.
+     *
+     * @param changes {@link List} Changes of type {@link CSubscriptionChange.Type#UPDATE_DEVICE} (every
+     *                subscription of a device moves to its new registration id) or
+     *                {@link CSubscriptionChange.Type#REMOVE_DEVICE} (every subscription of a device is removed).
+     */
+    public static Boolean applyRegistrationIdChanges(List<CSubscriptionChange> changes) {
+        if (changes.isEmpty())
+            return Boolean.TRUE;
+        final Set<String> deviceIds = new HashSet<>();
+        for (CSubscriptionChange change : changes) {
+            deviceIds.add(change.getDeviceId());
+            if (change.getNewDeviceId() != null)
+                deviceIds.add(change.getNewDeviceId());
+        }
+        final List<Lock> locks = lockDevices(deviceIds);
+        try {
+            final Boolean written = DBJournalSingleton.getInstance().isEnabled() ? DBJournalSingleton.getInstance()
+                    .append(toReplaySafeChanges(changes)) : SubscriptionStoreSingleton.getInstance()
+                    .applySubscriptionChanges(changes);
+            if (!written)
+                return Boolean.FALSE;
+            for (CSubscriptionChange change : changes) {
+                final Integer id = REGISTRATION_ID_DICTIONARY.get(change.getDeviceId());
+                if (id == null)
+                    continue;
+                switch (change.getType()) {
+                    case UPDATE_DEVICE:
+                        final Integer newId = REGISTRATION_ID_DICTIONARY.getOrAssign(change.getNewDeviceId());
+                        SUBSCRIPTION_INDEX.replaceDevice(id, newId);
+                        if (!id.equals(newId))
+                            REGISTRATION_ID_DICTIONARY.remove(id);
+                        break;
+                    case REMOVE_DEVICE:
+                        SUBSCRIPTION_INDEX.removeDevice(id);
+                        REGISTRATION_ID_DICTIONARY.remove(id);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Only registration id updates and removals can be " +
+                                "applied this way.");
+                }
+            }
+            return Boolean.TRUE;
+        } finally {
+            unlockDevices(locks);
+        }
+    }
+
+    /**
+     * Turns every update of a registration id into the subscription of the new id to the current tags of the old
+     * one, followed by the removal of the old one. Unlike the update, which depends on what the old id is
+     * subscribed to when it is applied, these have the same result if the journal applies them again. Must be
+     * called with both ids locked, so that the tags read from the index are still current when journaled.
+     */
+    private static List<CSubscriptionChange> toReplaySafeChanges(List<CSubscriptionChange> changes) {
+        final List<CSubscriptionChange> ret = new ArrayList<>(changes.size());
+        for (CSubscriptionChange change : changes) {
+            if (change.getType() != CSubscriptionChange.Type.UPDATE_DEVICE) {
+                ret.add(change);
+                continue;
+            }
+            final Integer id = REGISTRATION_ID_DICTIONARY.get(change.getDeviceId());
+            if (id != null) {
+                final List<String> tags = new ArrayList<>();
+                for (Integer tagId : SUBSCRIPTION_INDEX.getTagIds(id))
+                    tags.add(TAG_REGISTRY.get(tagId).getName());
+                if (!tags.isEmpty())
+                    ret.add(CSubscriptionChange.subscribe(change.getNewDeviceId(), tags));
+            }
+            ret.add(CSubscriptionChange.removeDevice(change.getDeviceId()));
+        }
+        return ret;
+    }
+
+    /**
+     * Leaves out of the subscriptions the tags the index already has for their devices, as the database can only
+     * skip existing subscriptions one row at a time. Must be called with the devices locked, so that the index
+     * agrees with the store.
+     *
+     * @return {@link List} The subscriptions that still have tags left.
+     */
+    private static List<CDeviceSubscription> withoutIndexedTags(List<CDeviceSubscription> subscriptions) {
+        final List<CDeviceSubscription> ret = new ArrayList<>(subscriptions.size());
+        for (CDeviceSubscription subscription : subscriptions) {
+            final Integer id = REGISTRATION_ID_DICTIONARY.get(subscription.getDeviceId());
+            if (id == null) {
+                ret.add(subscription);
+                continue;
+            }
+            final List<String> tags = new ArrayList<>(subscription.getTags().size());
+            for (String tagName : subscription.getTags()) {
+                final CEntityTag tag = TAG_REGISTRY.get(tagName);
+                if (tag == null || !SUBSCRIPTION_INDEX.contains(tag.getId(), id))
+                    tags.add(tagName);
+            }
+            if (tags.size() == subscription.getTags().size())
+                ret.add(subscription);
+            else if (!tags.isEmpty())
+                ret.add(new CDeviceSubscription(subscription.getDeviceId(), tags));
+        }
+        return ret;
+    }
+
+    /**
+     * Called with the device locked, so creating a tag here takes {@link #TAG_ACCESS_LOCK} after the device stripes.
+     */
+    private static void indexSubscriptions(String deviceId, List<String> tags) {
+        final Integer id = REGISTRATION_ID_DICTIONARY.getOrAssign(deviceId);
+        for (String tagName : tags) {
+            CEntityTag tag = TAG_REGISTRY.get(tagName);
+            if (tag == null) { //The database creates unknown tags on subscription, so does the registry
+                createTagsFromStringList(Collections.singletonList(tagName));
+                tag = TAG_REGISTRY.get(tagName);
+            }
+            if (tag != null)
+                SUBSCRIPTION_INDEX.add(tag.getId(), id);
+        }
+    }
+
+    /**
+     * A tag. There is only one instance per name, obtained from {@link CTagRegistry}, so they can be compared by
+     * identity.
+     */
+    public static final class CEntityTag {
+
+        private final String mName;
+        private final Integer mId;
+
+        CEntityTag(String _name, Integer _id) {
+            mName = _name;
+            mId = _id;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @return {@link Integer} Dense id of the tag, only valid during this run.
+         */
+        public Integer getId() {
+            return mId;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
 }
@@ -0,0 +1,404 @@
+package com.jorge.thesis.datamodel;
+
+import com.jorge.thesis.util.MetricsSingleton;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Assigns every registration id a dense int id, in order of appearance and never reused, so that sets of devices
+ * can be kept as bitmaps and passed around as ints. Ids are only valid during this run.
+ * <p>
+ * Registration ids are long, so their UTF-8 bytes are not kept on the heap but appended to a memory-mapped arena
+ * file, as a two-byte length followed by the bytes. The heap only holds, per id, its address in the arena and its
+ * hash, plus an open-addressing table of ids to find them by registration id.
+ * <p>
+ * Entries of devices that are gone are only marked as dead, as their ids may still be in requests on their way.
+ * Once the dead bytes outweigh the live ones, the live entries are copied to a new arena and the dead ones are
+ * dropped: from then on their ids have no registration id, and their registration ids get new ids if they come back.
+ * <p>
+ * Getting the registration id of an id never locks. Finding the id of a registration id takes a read lock, and
+ * assigning new ids, marking them as dead or compacting the arena a write lock.
+ */
+public final class CRegistrationIdDictionary {
+
+    private static final Integer SEGMENT_SIZE_BITS = 26; //64 MiB
+    private static final Integer SEGMENT_SIZE = 1 << SEGMENT_SIZE_BITS;
+    private static final Integer PAGE_SIZE_BITS = 16;
+    private static final Integer PAGE_SIZE = 1 << PAGE_SIZE_BITS;
+    private static final Integer LENGTH_PREFIX_SIZE = 2;
+    private static final Integer MAX_REGISTRATION_ID_LENGTH = 0xFFFF;
+    private static final Integer INITIAL_TABLE_CAPACITY = 1024;
+    private static final Integer EMPTY_SLOT = -1;
+    private static final Long DROPPED = -1L; //Address of the ids whose entries were dropped by a compaction
+    private static final Long MIN_DEAD_BYTES_TO_COMPACT = 1L << 20;
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    /**
+     * Where the lock-free readers find the entries. Replaced as a whole when the arena is compacted, so they never
+     * mix the addresses of one arena with the segments of the other.
+     */
+    private volatile CArenaView mView = new CArenaView(new MappedByteBuffer[0], new long[0][]);
+    private volatile int[][] mHashPages = new int[0][];
+    private volatile Integer mSize = 0;
+    private volatile Long mLiveBytes = 0L, mDeadBytes = 0L; //Written under the write lock of mLock
+    private int[] mTable; //Guarded by mLock
+    private final BitSet mDead = new BitSet(); //Guarded by mLock
+    private FileChannel mArena; //Guarded by the write lock of mLock, as everything below
+    private MappedByteBuffer[] mSegments = new MappedByteBuffer[0];
+    private Long mArenaEnd = 0L;
+
+    public CRegistrationIdDictionary() {
+        mArena = createArena();
+        mTable = new int[INITIAL_TABLE_CAPACITY];
+        Arrays.fill(mTable, EMPTY_SLOT);
+        final MetricsSingleton metrics = MetricsSingleton.getInstance();
+        metrics.gauge("registration_ids.live_bytes", this::getLiveBytes);
+        metrics.gauge("registration_ids.dead_bytes", this::getDeadBytes);
+    }
+
+    private static FileChannel createArena() {
+        try {
+            final Path arenaPath = Files.createTempFile("registration_ids", ".arena");
+            arenaPath.toFile().deleteOnExit();
+            return FileChannel.open(arenaPath, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Unable to create the registration id arena. Aborting.");
+        }
+    }
+
+    private static int hash(byte[] bytes) {
+        int ret = 0x811C9DC5; //FNV-1a
+        for (byte b : bytes) {
+            ret ^= b & 0xFF;
+            ret *= 0x01000193;
+        }
+        return ret ^ (ret >>> 16);
+    }
+
+    /**
+     * @return {@link Integer} The id of the registration id, or <value>null</value> if it has none yet.
+     */
+    public Integer get(String registrationId) {
+        final byte[] bytes = registrationId.getBytes(StandardCharsets.UTF_8);
+        mLock.readLock().lock();
+        try {
+            final int ret = find(bytes, hash(bytes));
+            return ret == EMPTY_SLOT ? null : ret;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return {@link String} The registration id with this id, or <value>null</value> if there is none.
+     */
+    public String get(Integer id) {
+        if (id < 0 || id >= mSize) //Reading the size first makes everything written before it visible
+            return null;
+        final CArenaView view = mView;
+        final long address = view.getAddress(id);
+        if (address == DROPPED)
+            return null;
+        final ByteBuffer segment = view.getSegment(address).duplicate();
+        final int offset = getOffset(address);
+        final byte[] ret = new byte[segment.getShort(offset) & MAX_REGISTRATION_ID_LENGTH];
+        segment.position(offset + LENGTH_PREFIX_SIZE);
+        segment.get(ret);
+        return new String(ret, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Copies the UTF-8 bytes of the registration id with this id, so that it can be written out without building a
+     * {@link String}. Takes and returns primitives, as it is called for every device of every request.
+     *
+     * @param destination {@link byte[]} Where to copy them to. Nothing is copied if they do not fit.
+     * @return Length in bytes of the registration id, or -1 if there is none with this id.
+     */
+    public int copy(int id, byte[] destination) {
+        if (id < 0 || id >= mSize) //Reading the size first makes everything written before it visible
+            return -1;
+        final CArenaView view = mView;
+        final long address = view.getAddress(id);
+        if (address == DROPPED)
+            return -1;
+        final MappedByteBuffer segment = view.getSegment(address);
+        final int offset = getOffset(address), ret = segment.getShort(offset) & MAX_REGISTRATION_ID_LENGTH;
+        if (ret <= destination.length)
+            for (int i = 0; i < ret; i++)
+                destination[i] = segment.get(offset + LENGTH_PREFIX_SIZE + i);
+        return ret;
+    }
+
+    /**
+     * @return {@link Integer} The id of the registration id, which is assigned if it has none yet.
+     */
+    public Integer getOrAssign(String registrationId) {
+        final byte[] bytes = registrationId.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_REGISTRATION_ID_LENGTH)
+            throw new IllegalArgumentException("Registration id longer than " + MAX_REGISTRATION_ID_LENGTH + " " +
+                    "bytes.");
+        final int hash = hash(bytes);
+
+        mLock.readLock().lock();
+        try {
+            final int existing = find(bytes, hash);
+            if (existing != EMPTY_SLOT && !mDead.get(existing))
+                return existing;
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        mLock.writeLock().lock();
+        try {
+            int ret = find(bytes, hash);
+            if (ret != EMPTY_SLOT) {
+                if (mDead.get(ret)) { //The device is back before its entry was dropped
+                    mDead.clear(ret);
+                    mDeadBytes -= LENGTH_PREFIX_SIZE + bytes.length;
+                    mLiveBytes += LENGTH_PREFIX_SIZE + bytes.length;
+                }
+                return ret;
+            }
+            ret = mSize;
+            final Long address = append(bytes);
+            final Integer page = ret >>> PAGE_SIZE_BITS, slotInPage = ret & (PAGE_SIZE - 1);
+            long[][] addressPages = mView.mAddressPages;
+            if (page == addressPages.length) {
+                addressPages = Arrays.copyOf(addressPages, page + 1);
+                addressPages[page] = new long[PAGE_SIZE];
+                final int[][] hashPages = Arrays.copyOf(mHashPages, page + 1);
+                hashPages[page] = new int[PAGE_SIZE];
+                mHashPages = hashPages;
+            }
+            addressPages[page][slotInPage] = address;
+            mHashPages[page][slotInPage] = hash;
+            if (addressPages != mView.mAddressPages || mSegments != mView.mSegments)
+                mView = new CArenaView(mSegments, addressPages);
+            if ((ret + 1) * 4 > mTable.length * 3) //Keeps the load factor under 0.75
+                growTable();
+            insert(ret, hash);
+            mLiveBytes += LENGTH_PREFIX_SIZE + bytes.length;
+            mSize = ret + 1; //Publishes the new id
+            return ret;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Marks the entry of the id as dead, once its device is gone. It can still be read until the arena is
+     * compacted, which this may trigger, and it comes back to life if its registration id is assigned again before.
+     */
+    public void remove(Integer id) {
+        mLock.writeLock().lock();
+        try {
+            if (id < 0 || id >= mSize || mDead.get(id))
+                return;
+            final CArenaView view = mView;
+            final long address = view.getAddress(id);
+            if (address == DROPPED)
+                return;
+            final Integer entrySize = LENGTH_PREFIX_SIZE + (view.getSegment(address).getShort(getOffset(address)) &
+                    MAX_REGISTRATION_ID_LENGTH);
+            mDead.set(id);
+            mDeadBytes += entrySize;
+            mLiveBytes -= entrySize;
+            if (mDeadBytes >= MIN_DEAD_BYTES_TO_COMPACT && mDeadBytes > mLiveBytes)
+                compact();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Holds compaction off until the returned lock is unlocked, so that the registration ids of a batch can be read
+     * without any of them being dropped halfway. Nothing can be assigned or removed meanwhile by the same thread.
+     *
+     * @return {@link Lock} The lock that does it, already taken.
+     */
+    public Lock holdOffCompaction() {
+        final Lock ret = mLock.readLock();
+        ret.lock();
+        return ret;
+    }
+
+    public Integer size() {
+        return mSize;
+    }
+
+    /**
+     * @return {@link Long} Amount of bytes of the entries of live ids held off the heap.
+     */
+    public Long getLiveBytes() {
+        return mLiveBytes;
+    }
+
+    /**
+     * @return {@link Long} Amount of bytes of the entries marked as dead and not yet dropped by a compaction.
+     */
+    public Long getDeadBytes() {
+        return mDeadBytes;
+    }
+
+    private static int getOffset(long address) {
+        return (int) (address & (SEGMENT_SIZE - 1));
+    }
+
+    private int find(byte[] bytes, int hash) {
+        final int mask = mTable.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final int candidate = mTable[slot];
+            if (candidate == EMPTY_SLOT)
+                return EMPTY_SLOT;
+            if (mHashPages[candidate >>> PAGE_SIZE_BITS][candidate & (PAGE_SIZE - 1)] == hash && storedEquals
+                    (candidate, bytes))
+                return candidate;
+        }
+    }
+
+    private Boolean storedEquals(Integer id, byte[] bytes) {
+        final CArenaView view = mView;
+        final long address = view.getAddress(id);
+        final MappedByteBuffer segment = view.getSegment(address);
+        final Integer offset = getOffset(address);
+        if ((segment.getShort(offset) & MAX_REGISTRATION_ID_LENGTH) != bytes.length)
+            return Boolean.FALSE;
+        for (int i = 0; i < bytes.length; i++)
+            if (segment.get(offset + LENGTH_PREFIX_SIZE + i) != bytes[i])
+                return Boolean.FALSE;
+        return Boolean.TRUE;
+    }
+
+    private void insert(int id, int hash) {
+        final int mask = mTable.length - 1;
+        int slot = hash & mask;
+        while (mTable[slot] != EMPTY_SLOT)
+            slot = (slot + 1) & mask;
+        mTable[slot] = id;
+    }
+
+    private void growTable() {
+        rebuildTable(mTable.length * 2);
+    }
+
+    /**
+     * Ids whose entries were dropped are left out, so that they are never found again.
+     */
+    private void rebuildTable(Integer capacity) {
+        mTable = new int[capacity];
+        Arrays.fill(mTable, EMPTY_SLOT);
+        final CArenaView view = mView;
+        for (int id = 0; id < mSize; id++)
+            if (view.getAddress(id) != DROPPED)
+                insert(id, mHashPages[id >>> PAGE_SIZE_BITS][id & (PAGE_SIZE - 1)]);
+    }
+
+    /**
+     * Copies the live entries to a new arena, in order of id, and drops the dead ones. Readers that are still on the
+     * old arena can finish, as its segments stay mapped until nobody uses them, but the file is not written again.
+     */
+    private void compact() {
+        final CArenaView oldView = mView;
+        final FileChannel oldArena = mArena;
+        final Long deadBytes = mDeadBytes;
+        mArena = createArena();
+        mSegments = new MappedByteBuffer[0];
+        mArenaEnd = 0L;
+        final long[][] addressPages = new long[oldView.mAddressPages.length][PAGE_SIZE];
+        for (int id = 0; id < mSize; id++) {
+            final long address = oldView.getAddress(id);
+            final long newAddress;
+            if (address == DROPPED || mDead.get(id))
+                newAddress = DROPPED;
+            else {
+                final ByteBuffer segment = oldView.getSegment(address).duplicate();
+                final int offset = getOffset(address);
+                final byte[] bytes = new byte[segment.getShort(offset) & MAX_REGISTRATION_ID_LENGTH];
+                segment.position(offset + LENGTH_PREFIX_SIZE);
+                segment.get(bytes);
+                newAddress = append(bytes);
+            }
+            addressPages[id >>> PAGE_SIZE_BITS][id & (PAGE_SIZE - 1)] = newAddress;
+        }
+        mView = new CArenaView(mSegments, addressPages);
+        mDead.clear();
+        mDeadBytes = 0L;
+        rebuildTable(mTable.length);
+        try {
+            oldArena.close(); //Its mappings stay valid, and the file is deleted once they are gone
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            //Only the space of the old arena is lost
+        }
+        System.out.println("Compacted the registration id arena, dropping " + deadBytes + " bytes of dead entries.");
+    }
+
+    /**
+     * Writes the entry at the end of the arena being written, which readers only see once a view with its segments
+     * is published.
+     *
+     * @return {@link Long} The address of the entry, as segment number followed by offset in the segment.
+     */
+    private Long append(byte[] bytes) {
+        final Integer entrySize = LENGTH_PREFIX_SIZE + bytes.length;
+        Integer segmentIndex = (int) (mArenaEnd >>> SEGMENT_SIZE_BITS);
+        Integer offset = (int) (mArenaEnd & (SEGMENT_SIZE - 1));
+        if (offset + entrySize > SEGMENT_SIZE) { //Entries never span two segments
+            segmentIndex++;
+            offset = 0;
+        }
+        if (segmentIndex == mSegments.length) {
+            try {
+                final MappedByteBuffer[] segments = Arrays.copyOf(mSegments, segmentIndex + 1);
+                segments[segmentIndex] = mArena.map(FileChannel.MapMode.READ_WRITE, (long) segmentIndex *
+                        SEGMENT_SIZE, SEGMENT_SIZE);
+                mSegments = segments; //Published by the caller
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                throw new IllegalStateException("Unable to grow the registration id arena. Aborting.");
+            }
+        }
+        final MappedByteBuffer segment = mSegments[segmentIndex];
+        segment.putShort(offset, (short) bytes.length);
+        for (int i = 0; i < bytes.length; i++)
+            segment.put(offset + LENGTH_PREFIX_SIZE + i, bytes[i]);
+        final Long ret = ((long) segmentIndex << SEGMENT_SIZE_BITS) | offset;
+        mArenaEnd = ret + entrySize;
+        return ret;
+    }
+
+    /**
+     * The segments of an arena along with the address of every id in it.
+     */
+    private static final class CArenaView {
+
+        private final MappedByteBuffer[] mSegments;
+        private final long[][] mAddressPages;
+
+        private CArenaView(MappedByteBuffer[] _segments, long[][] _addressPages) {
+            mSegments = _segments;
+            mAddressPages = _addressPages;
+        }
+
+        private long getAddress(int id) {
+            return mAddressPages[id >>> PAGE_SIZE_BITS][id & (PAGE_SIZE - 1)];
+        }
+
+        private MappedByteBuffer getSegment(long address) {
+            return mSegments[(int) (address >>> SEGMENT_SIZE_BITS)];
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.jorge.thesis.datamodel;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A change to the tags or to the subscriptions of a device, as it is kept in files until it reaches the store (or as
+ * the file-backed store keeps it).
+ */
+public final class CSubscriptionChange {
+
+    private final Type mType;
+    private final String mDeviceId, mNewDeviceId;
+    private final List<String> mTags;
+
+    public CSubscriptionChange(Type _type, String _deviceId, String _newDeviceId, List<String> _tags) {
+        mType = _type;
+        mDeviceId = _deviceId;
+        mNewDeviceId = _newDeviceId;
+        mTags = _tags;
+    }
+
+    public static CSubscriptionChange addTag(String tagName) {
+        return new CSubscriptionChange(Type.ADD_TAG, null, null, Collections.singletonList(tagName));
+    }
+
+    public static CSubscriptionChange subscribe(String deviceId, List<String> tags) {
+        return new CSubscriptionChange(Type.SUBSCRIBE, deviceId, null, tags);
+    }
+
+    public static CSubscriptionChange unsubscribe(String deviceId, List<String> tags) {
+        return new CSubscriptionChange(Type.UNSUBSCRIBE, deviceId, null, tags);
+    }
+
+    public static CSubscriptionChange updateDevice(String oldDeviceId, String newDeviceId) {
+        return new CSubscriptionChange(Type.UPDATE_DEVICE, oldDeviceId, newDeviceId, Collections.<String>emptyList());
+    }
+
+    public static CSubscriptionChange removeDevice(String deviceId) {
+        return new CSubscriptionChange(Type.REMOVE_DEVICE, deviceId, null, Collections.<String>emptyList());
+    }
+
+    public static CSubscriptionChange decode(byte[] payload) {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(payload))) {
+            final Type type = Type.values()[input.readByte()];
+            final String deviceId = input.readUTF(), newDeviceId = input.readUTF();
+            final Integer tagAmount = input.readInt();
+            final List<String> tags = new ArrayList<>(tagAmount);
+            for (Integer i = 0; i < tagAmount; i++)
+                tags.add(input.readUTF());
+            return new CSubscriptionChange(type, deviceId.isEmpty() ? null : deviceId, newDeviceId.isEmpty() ? null :
+                    newDeviceId, tags);
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalArgumentException("Malformed subscription change.");
+        }
+    }
+
+    public byte[] encode() {
+        final ByteArrayOutputStream ret = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(ret)) {
+            output.writeByte(mType.ordinal());
+            output.writeUTF(mDeviceId == null ? "" : mDeviceId);
+            output.writeUTF(mNewDeviceId == null ? "" : mNewDeviceId);
+            output.writeInt(mTags.size());
+            for (String tag : mTags)
+                output.writeUTF(tag);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            //Should never happen
+        }
+        return ret.toByteArray();
+    }
+
+    public Type getType() {
+        return mType;
+    }
+
+    /**
+     * @return {@link String} The registration id of the device, or <value>null</value> for {@link Type#ADD_TAG}.
+     */
+    public String getDeviceId() {
+        return mDeviceId;
+    }
+
+    /**
+     * @return {@link String} The registration id that replaces the device one, only for
+     * {@link Type#UPDATE_DEVICE}.
+     */
+    public String getNewDeviceId() {
+        return mNewDeviceId;
+    }
+
+    /**
+     * @return {@link List} The tags added, subscribed to or unsubscribed from, empty for changes of the whole device.
+     */
+    public List<String> getTags() {
+        return mTags;
+    }
+
+    public enum Type {
+        SUBSCRIBE, UNSUBSCRIBE, UPDATE_DEVICE, REMOVE_DEVICE, ADD_TAG
+    }
+}
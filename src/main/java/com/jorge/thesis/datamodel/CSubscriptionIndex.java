@@ -0,0 +1,147 @@
+package com.jorge.thesis.datamodel;
+
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the subscriptions: for every tag, the compressed bitmap of the dictionary ids of its
+ * subscribers. It is filled from the database at startup and then kept up to date by every change written to it,
+ * so that fan-out never needs to read the database.
+ */
+public final class CSubscriptionIndex {
+
+    private final ConcurrentMap<Integer, CTagSubscribers> mSubscribersByTagId = new ConcurrentHashMap<>();
+
+    public void add(Integer tagId, Integer deviceId) {
+        mSubscribersByTagId.computeIfAbsent(tagId, k -> new CTagSubscribers()).add(deviceId);
+    }
+
+    public void remove(Integer tagId, Integer deviceId) {
+        final CTagSubscribers subscribers = mSubscribersByTagId.get(tagId);
+        if (subscribers != null)
+            subscribers.remove(deviceId);
+    }
+
+    /**
+     * Removes the device from every tag.
+     */
+    public void removeDevice(Integer deviceId) {
+        for (CTagSubscribers subscribers : mSubscribersByTagId.values())
+            subscribers.remove(deviceId);
+    }
+
+    /**
+     * Moves every subscription of a device to another one.
+     */
+    public void replaceDevice(Integer oldDeviceId, Integer newDeviceId) {
+        for (CTagSubscribers subscribers : mSubscribersByTagId.values())
+            subscribers.replace(oldDeviceId, newDeviceId);
+    }
+
+    public Boolean contains(Integer tagId, Integer deviceId) {
+        final CTagSubscribers subscribers = mSubscribersByTagId.get(tagId);
+        return subscribers != null && subscribers.contains(deviceId);
+    }
+
+    /**
+     * @return {@link List} The ids of the tags the device is subscribed to.
+     */
+    public List<Integer> getTagIds(Integer deviceId) {
+        final List<Integer> ret = new ArrayList<>();
+        for (Map.Entry<Integer, CTagSubscribers> tagAndSubscribers : mSubscribersByTagId.entrySet())
+            if (tagAndSubscribers.getValue().contains(deviceId))
+                ret.add(tagAndSubscribers.getKey());
+        return ret;
+    }
+
+    /**
+     * @return {@link RoaringBitmap} A copy of the subscribers of the tag, which can be iterated while the index
+     * keeps changing.
+     */
+    public RoaringBitmap getSubscribers(Integer tagId) {
+        final CTagSubscribers subscribers = mSubscribersByTagId.get(tagId);
+        return subscribers == null ? new RoaringBitmap() : subscribers.copy();
+    }
+
+    /**
+     * Compacts the bitmaps after a bulk load.
+     */
+    public void optimise(Collection<Integer> tagIds) {
+        for (Integer tagId : tagIds) {
+            final CTagSubscribers subscribers = mSubscribersByTagId.get(tagId);
+            if (subscribers != null)
+                subscribers.optimise();
+        }
+    }
+
+    private static final class CTagSubscribers {
+
+        private final RoaringBitmap mBitmap = new RoaringBitmap();
+        private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+        private void add(Integer deviceId) {
+            mLock.writeLock().lock();
+            try {
+                mBitmap.add(deviceId);
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        private void remove(Integer deviceId) {
+            mLock.writeLock().lock();
+            try {
+                mBitmap.remove(deviceId);
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        private void replace(Integer oldDeviceId, Integer newDeviceId) {
+            mLock.writeLock().lock();
+            try {
+                if (mBitmap.contains(oldDeviceId)) {
+                    mBitmap.remove(oldDeviceId);
+                    mBitmap.add(newDeviceId);
+                }
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+
+        private Boolean contains(Integer deviceId) {
+            mLock.readLock().lock();
+            try {
+                return mBitmap.contains(deviceId);
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        private RoaringBitmap copy() {
+            mLock.readLock().lock();
+            try {
+                return mBitmap.clone();
+            } finally {
+                mLock.readLock().unlock();
+            }
+        }
+
+        private void optimise() {
+            mLock.writeLock().lock();
+            try {
+                mBitmap.runOptimize();
+            } finally {
+                mLock.writeLock().unlock();
+            }
+        }
+    }
+}
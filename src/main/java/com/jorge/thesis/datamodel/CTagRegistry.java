@@ -0,0 +1,72 @@
+package com.jorge.thesis.datamodel;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Set of known tags. Every tag is interned to a single {@link CEntityTagManager.CEntityTag} instance with a dense
+ * id, assigned in order of registration and never reused, so that it can be used as an array index.
+ * <p>
+ * Lookups by name or id never lock. Registrations are serialised among themselves and publish a new immutable
+ * snapshot of the whole set.
+ */
+public final class CTagRegistry {
+
+    private final ConcurrentMap<String, CEntityTagManager.CEntityTag> mTagsByName = new ConcurrentHashMap<>();
+    private final Object mRegistrationLock = new Object();
+    private volatile CEntityTagManager.CEntityTag[] mTagsById = new CEntityTagManager.CEntityTag[0];
+
+    /**
+     * @return {@link CEntityTagManager.CEntityTag} The tag with this name, or <value>null</value> if it is not
+     * registered.
+     */
+    public CEntityTagManager.CEntityTag get(String name) {
+        return mTagsByName.get(name);
+    }
+
+    /**
+     * @return {@link CEntityTagManager.CEntityTag} The tag with this id, or <value>null</value> if it is not
+     * registered.
+     */
+    public CEntityTagManager.CEntityTag get(Integer id) {
+        final CEntityTagManager.CEntityTag[] tagsById = mTagsById;
+        return id >= 0 && id < tagsById.length ? tagsById[id] : null;
+    }
+
+    /**
+     * Registers a tag if it isn't already.
+     *
+     * @return {@link CEntityTagManager.CEntityTag} The only instance of the tag with this name.
+     */
+    public CEntityTagManager.CEntityTag intern(String name) {
+        final CEntityTagManager.CEntityTag existing = mTagsByName.get(name);
+        if (existing != null)
+            return existing;
+
+        synchronized (mRegistrationLock) {
+            CEntityTagManager.CEntityTag ret = mTagsByName.get(name);
+            if (ret == null) {
+                final CEntityTagManager.CEntityTag[] tagsById = Arrays.copyOf(mTagsById, mTagsById.length + 1);
+                ret = new CEntityTagManager.CEntityTag(name, tagsById.length - 1);
+                tagsById[ret.getId()] = ret;
+                mTagsById = tagsById; //Published before the name so that a tag found by name is also found by id
+                mTagsByName.put(name, ret);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * @return {@link List} Every registered tag, ordered by id. The list never changes once returned.
+     */
+    public List<CEntityTagManager.CEntityTag> snapshot() {
+        return Collections.unmodifiableList(Arrays.asList(mTagsById));
+    }
+
+    public Integer size() {
+        return mTagsById.length;
+    }
+}
@@ -1,41 +1,106 @@
 package com.jorge.thesis.gcm;
 
-import com.jorge.thesis.util.TimeUtils;
-import com.squareup.okhttp.Request;
-
+import java.util.Arrays;
 import java.util.concurrent.Delayed;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * A GCM request along with what is needed to handle its response, and the moment it is due to be sent. Its body is
+ * only built when it is sent, from the tag and the devices.
+ */
 public class CDelayedRequest implements Delayed {
 
-    private final Long mDelay;
-    private final TimeUnit mDelayUnit;
-    private final Request mRequest;
+    private final Long mDeadlineNanos;
+    private final Integer mAttempt;
+    private final int[] mDeviceIds;
+    private final String mTagName;
+    private final CSyncStatus mSyncStatus;
+    private final Boolean mParked;
+
+    /**
+     * Creates the next attempt of a request.
+     *
+     * @param _deadlineNanos {@link Long} When the attempt is due, in {@link System#nanoTime()} terms.
+     */
+    public CDelayedRequest(CDelayedRequest _request, Long _deadlineNanos) {
+        this(_request.getDeviceIds(), _request.getTagName(), _request.getSyncStatus(),
+                _request.getAttempt() + 1, _deadlineNanos);
+    }
+
+    /**
+     * @param _deviceIds     {@link int[]} Dictionary ids of the devices the request is sent to, in the same order as
+     *                       in the request.
+     * @param _tagName       {@link String} Name of the tag whose sync the request notifies.
+     * @param _attempt       {@link Integer} How many times the devices of the request have been sent to before.
+     * @param _deadlineNanos {@link Long} When the request is due, in {@link System#nanoTime()} terms.
+     */
+    public CDelayedRequest(int[] _deviceIds, String _tagName, CSyncStatus _syncStatus, Integer _attempt, Long
+            _deadlineNanos) {
+        this(_deviceIds, _tagName, _syncStatus, _attempt, _deadlineNanos, Boolean.FALSE);
+    }
 
-    public CDelayedRequest(CDelayedRequest _request, Long _delay, TimeUnit _unit) {
-        this(_request.getPureRequest(), _delay, _unit);
+    private CDelayedRequest(int[] _deviceIds, String _tagName, CSyncStatus _syncStatus, Integer _attempt, Long
+            _deadlineNanos, Boolean _parked) {
+        mDeviceIds = _deviceIds;
+        mTagName = _tagName;
+        mSyncStatus = _syncStatus;
+        mAttempt = _attempt;
+        mDeadlineNanos = _deadlineNanos;
+        mParked = _parked;
     }
 
-    public CDelayedRequest(Request _request, Long _delay, TimeUnit _unit) {
-        mRequest = _request;
-        mDelay = _delay;
-        mDelayUnit = _unit;
+    /**
+     * @return {@link CDelayedRequest} The same attempt of the request, held back until the deadline without having
+     * been sent.
+     */
+    public CDelayedRequest parkUntil(Long deadlineNanos) {
+        return new CDelayedRequest(mDeviceIds, mTagName, mSyncStatus, mAttempt, deadlineNanos, Boolean.TRUE);
     }
 
+    /**
+     * @return The time left until the request is due, negative once it is.
+     */
     @Override
     public long getDelay(@SuppressWarnings("NullableProblems") TimeUnit unit) {
-        return TimeUtils.convertTimeTo(mDelay, mDelayUnit, unit);
+        return unit.convert(mDeadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    public Long getDeadlineNanos() {
+        return mDeadlineNanos;
+    }
+
+    public Integer getAttempt() {
+        return mAttempt;
+    }
+
+    /**
+     * @return <value>TRUE</value> if the request was held back instead of being sent when it was due.
+     */
+    public Boolean isParked() {
+        return mParked;
+    }
+
+    /**
+     * @return {@link int[]} Dictionary ids of the devices the request is sent to, in the same order as in the
+     * request. Do not modify it.
+     */
+    public int[] getDeviceIds() {
+        return mDeviceIds;
+    }
+
+    public String getTagName() {
+        return mTagName;
     }
 
-    public Request getPureRequest() {
-        return mRequest;
+    public CSyncStatus getSyncStatus() {
+        return mSyncStatus;
     }
 
     @Override
     public int compareTo(@SuppressWarnings("NullableProblems") Delayed o) {
         if (o instanceof CDelayedRequest) {
-            return TimeUtils.convertTimeTo(mDelay, mDelayUnit, TimeUnit.MILLISECONDS).compareTo(o.getDelay(TimeUnit
-                    .MILLISECONDS));
+            //Deadlines may wrap around, so only their difference is meaningful
+            return Long.signum(mDeadlineNanos - ((CDelayedRequest) o).getDeadlineNanos());
         } else
             throw new UnsupportedOperationException(getClass().getName() + " objects can only be compared as " +
                     "CDelayedRequests " +
@@ -52,6 +117,7 @@ public class CDelayedRequest implements Delayed {
                     "among " +
                     "themselves.");
         else
-            return getPureRequest().equals(((CDelayedRequest) obj).getPureRequest());
+            return getTagName().equals(((CDelayedRequest) obj).getTagName()) && Arrays.equals(getDeviceIds(), (
+                    (CDelayedRequest) obj).getDeviceIds());
     }
 }
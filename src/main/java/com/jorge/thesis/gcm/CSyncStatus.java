@@ -0,0 +1,105 @@
+package com.jorge.thesis.gcm;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of a sync request, from its acceptance until every GCM batch it produced has been answered.
+ */
+public final class CSyncStatus {
+
+    private final Long mId;
+    private final List<String> mTags;
+    private final Long mAcceptedAtMillis = System.currentTimeMillis();
+    private final AtomicLong mSubscribersRead = new AtomicLong(), mBatchesCreated = new AtomicLong(),
+            mBatchesRetried = new AtomicLong(), mBatchesHandled = new AtomicLong(), mBatchesFailed = new AtomicLong();
+    private volatile State mState = State.QUEUED;
+    private volatile Boolean mFanOutFinished = Boolean.FALSE;
+
+    CSyncStatus(Long _id, List<String> _tags) {
+        mId = _id;
+        mTags = _tags;
+    }
+
+    public Long getId() {
+        return mId;
+    }
+
+    public State getState() {
+        return mState;
+    }
+
+    void onStarted() {
+        mState = State.RUNNING;
+    }
+
+    void onSubscribersRead(Integer amount) {
+        mSubscribersRead.addAndGet(amount);
+    }
+
+    void onBatchCreated() {
+        mBatchesCreated.incrementAndGet();
+    }
+
+    void onBatchRetried() {
+        mBatchesRetried.incrementAndGet();
+    }
+
+    void onBatchHandled() {
+        mBatchesHandled.incrementAndGet();
+        finishIfDone();
+    }
+
+    void onBatchFailed() {
+        mBatchesFailed.incrementAndGet();
+        onBatchHandled();
+    }
+
+    void onFanOutFinished() {
+        mFanOutFinished = Boolean.TRUE;
+        finishIfDone();
+    }
+
+    void onFanOutFailed() {
+        mFanOutFinished = Boolean.TRUE;
+        mState = State.FAILED;
+    }
+
+    private Long getPendingBatches() {
+        //Every retry is sent as one more batch, so it is handled one more time
+        return mBatchesCreated.get() + mBatchesRetried.get() - mBatchesHandled.get();
+    }
+
+    private void finishIfDone() {
+        if (mFanOutFinished && mState == State.RUNNING && getPendingBatches() == 0)
+            mState = mBatchesFailed.get() == 0 ? State.DONE : State.FAILED;
+    }
+
+    public String toJSONString() {
+        final JSONObject ret = new JSONObject();
+        try {
+            ret.put("sync_id", mId);
+            ret.put("tags", new JSONArray(mTags));
+            ret.put("state", mState.name().toLowerCase(Locale.ENGLISH));
+            ret.put("accepted_at", mAcceptedAtMillis);
+            ret.put("subscribers", mSubscribersRead.get());
+            ret.put("batches_created", mBatchesCreated.get());
+            ret.put("batches_retried", mBatchesRetried.get());
+            ret.put("batches_pending", getPendingBatches());
+            ret.put("batches_failed", mBatchesFailed.get());
+        } catch (JSONException e) {
+            e.printStackTrace(System.err);
+            //Will never happen
+        }
+        return ret.toString();
+    }
+
+    public enum State {
+        QUEUED, RUNNING, DONE, FAILED
+    }
+}
@@ -0,0 +1,105 @@
+package com.jorge.thesis.gcm;
+
+import com.jorge.thesis.util.MetricsSingleton;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a request may be sent to GCM: no faster than a fixed rate (a token bucket that can hold one second
+ * worth of requests), and with no more requests in flight than a limit that adapts to how GCM copes. The limit grows
+ * by one for every round of requests answered quickly, and is halved when GCM shows signs of being overloaded, at
+ * most once per round.
+ */
+final class GCMAdmissionController {
+
+    private static final Long HEALTHY_LATENCY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final Double DECREASE_FACTOR = 0.5;
+    private final Double mTokensPerNano, mMaxTokens;
+    private final Integer mMaxLimit;
+    private Double mTokens, mLimit; //Guarded by this
+    private Integer mInFlight = 0; //Guarded by this
+    private Long mLastRefillNanos, mLastDecreaseNanos; //Guarded by this
+
+    /**
+     * @param _requestsPerSecond {@link Integer} Highest sending rate.
+     * @param _maxLimit          {@link Integer} Most requests that can ever be in flight at once.
+     */
+    GCMAdmissionController(Integer _requestsPerSecond, Integer _maxLimit) {
+        mTokensPerNano = (double) _requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        mMaxTokens = (double) _requestsPerSecond;
+        mTokens = mMaxTokens;
+        mMaxLimit = _maxLimit;
+        mLimit = (double) Math.max(1, _maxLimit / 4);
+        mLastRefillNanos = System.nanoTime();
+        mLastDecreaseNanos = mLastRefillNanos - 1;
+
+        final MetricsSingleton metrics = MetricsSingleton.getInstance();
+        metrics.gauge("gcm.admission.rate_limit", () -> _requestsPerSecond);
+        metrics.gauge("gcm.admission.concurrency_limit", this::getLimit);
+        metrics.gauge("gcm.admission.in_flight", this::getInFlight);
+    }
+
+    /**
+     * Waits until the request may be sent. Every call must be followed by one to
+     * {@link #release(Long, Long, Boolean)}.
+     *
+     * @return {@link Long} When the request was admitted, in {@link System#nanoTime()} terms.
+     */
+    synchronized Long acquire() {
+        final Long startNanos = System.nanoTime();
+        for (; ; ) {
+            refill();
+            if (mInFlight < mLimit.intValue() && mTokens >= 1) {
+                mTokens--;
+                mInFlight++;
+                final Long ret = System.nanoTime();
+                MetricsSingleton.getInstance().timer("gcm.admission.wait").record(ret - startNanos);
+                return ret;
+            }
+            try {
+                if (mInFlight >= mLimit.intValue())
+                    wait(); //Until a request is released
+                else
+                    TimeUnit.NANOSECONDS.timedWait(this, (long) Math.ceil((1 - mTokens) / mTokensPerNano));
+            } catch (InterruptedException e) {
+                //Let the request through rather than lose it, and keep the interruption for the caller
+                Thread.currentThread().interrupt();
+                mInFlight++;
+                return System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * @param admittedAtNanos {@link Long} What {@link #acquire()} returned for the request.
+     * @param latencyNanos    {@link Long} How long GCM took to answer.
+     * @param overloaded      {@link Boolean} Whether the answer showed signs of GCM being overloaded.
+     */
+    synchronized void release(Long admittedAtNanos, Long latencyNanos, Boolean overloaded) {
+        mInFlight--;
+        if (overloaded) {
+            //Requests sent before the last decrease were already taken into account by it
+            if (admittedAtNanos - mLastDecreaseNanos > 0) {
+                mLimit = Math.max(1, mLimit * DECREASE_FACTOR);
+                mLastDecreaseNanos = System.nanoTime();
+                MetricsSingleton.getInstance().counter("gcm.admission.decreases").incrementAndGet();
+            }
+        } else if (latencyNanos <= HEALTHY_LATENCY_NANOS)
+            mLimit = Math.min(mMaxLimit, mLimit + 1 / mLimit);
+        notifyAll();
+    }
+
+    private void refill() {
+        final Long now = System.nanoTime();
+        mTokens = Math.min(mMaxTokens, mTokens + (now - mLastRefillNanos) * mTokensPerNano);
+        mLastRefillNanos = now;
+    }
+
+    synchronized Integer getLimit() {
+        return mLimit.intValue();
+    }
+
+    synchronized Integer getInFlight() {
+        return mInFlight;
+    }
+}
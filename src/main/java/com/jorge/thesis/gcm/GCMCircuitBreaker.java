@@ -0,0 +1,103 @@
+package com.jorge.thesis.gcm;
+
+import com.jorge.thesis.util.MetricsSingleton;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending to GCM while it is down. After {@link #FAILURES_TO_OPEN} requests in a row get no answer or a 5xx,
+ * the breaker opens and refuses every request for a while. Then it lets a single probe through: if it succeeds the
+ * breaker closes, and if it fails the breaker opens again for twice as long, up to {@link #MAX_OPEN_NANOS}.
+ * <p>
+ * Every state is a new generation, and results of requests let through by an older one are ignored, as the state
+ * they would count towards is gone.
+ */
+final class GCMCircuitBreaker {
+
+    private static final Integer FAILURES_TO_OPEN = 5;
+    private static final Long MIN_OPEN_NANOS = TimeUnit.SECONDS.toNanos(5), MAX_OPEN_NANOS = TimeUnit.MINUTES.toNanos
+            (2), PROBE_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private State mState = State.CLOSED; //Guarded by this
+    private Long mGeneration = 0L, mOpenNanos = MIN_OPEN_NANOS, mOpenUntilNanos = 0L; //Guarded by this
+    private Integer mConsecutiveFailures = 0; //Guarded by this
+    private Boolean mProbeInFlight = Boolean.FALSE; //Guarded by this
+
+    GCMCircuitBreaker() {
+        MetricsSingleton.getInstance().gauge("gcm.breaker.state", () -> getState().ordinal());
+    }
+
+    /**
+     * @return {@link Long} The generation the request is let through by, to be given back to
+     * {@link #onResult(Long, Boolean)}; or <value>null</value> if it must not be sent now.
+     */
+    synchronized Long tryAcquire() {
+        if (mState == State.OPEN && System.nanoTime() - mOpenUntilNanos >= 0)
+            moveTo(State.HALF_OPEN);
+        switch (mState) {
+            case CLOSED:
+                return mGeneration;
+            case HALF_OPEN:
+                if (mProbeInFlight)
+                    return null;
+                mProbeInFlight = Boolean.TRUE;
+                return mGeneration;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return {@link Long} When a request that was not let through should ask again, in {@link System#nanoTime()}
+     * terms.
+     */
+    synchronized Long getRetryAtNanos() {
+        return mState == State.OPEN ? mOpenUntilNanos : System.nanoTime() + PROBE_WAIT_NANOS;
+    }
+
+    /**
+     * @param generation {@link Long} What {@link #tryAcquire()} returned for the request.
+     * @param failed     {@link Boolean} Whether the request got no answer or a 5xx.
+     */
+    synchronized void onResult(Long generation, Boolean failed) {
+        if (!generation.equals(mGeneration))
+            return;
+        switch (mState) {
+            case CLOSED:
+                mConsecutiveFailures = failed ? mConsecutiveFailures + 1 : 0;
+                if (mConsecutiveFailures >= FAILURES_TO_OPEN)
+                    moveTo(State.OPEN);
+                break;
+            case HALF_OPEN:
+                mProbeInFlight = Boolean.FALSE;
+                if (failed) {
+                    mOpenNanos = Math.min(MAX_OPEN_NANOS, mOpenNanos * 2);
+                    moveTo(State.OPEN);
+                } else {
+                    mOpenNanos = MIN_OPEN_NANOS;
+                    moveTo(State.CLOSED);
+                }
+                break;
+        }
+    }
+
+    private void moveTo(State state) {
+        mState = state;
+        mGeneration++;
+        mConsecutiveFailures = 0;
+        if (state == State.OPEN)
+            mOpenUntilNanos = System.nanoTime() + mOpenNanos;
+        MetricsSingleton.getInstance().counter("gcm.breaker." + state.name().toLowerCase(Locale.ENGLISH))
+                .incrementAndGet();
+        System.out.println("GCM circuit breaker " + state.name().toLowerCase(Locale.ENGLISH).replace('_', ' ') +
+                (state == State.OPEN ? " for " + TimeUnit.NANOSECONDS.toMillis(mOpenNanos) + " ms." : "."));
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -2,37 +2,121 @@ package com.jorge.thesis.gcm;
 
 import com.jorge.thesis.datamodel.CEntityTagManager;
 import com.jorge.thesis.io.file.FileReadUtils;
+import com.jorge.thesis.io.net.CHTTPResponse;
 import com.jorge.thesis.io.net.HTTPRequestsSingleton;
 import com.jorge.thesis.util.EnvVars;
-import com.jorge.thesis.util.TimeUtils;
-import com.squareup.okhttp.MediaType;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.RequestBody;
+import com.jorge.thesis.util.HashedTimingWheel;
+import com.jorge.thesis.util.MetricsSingleton;
 import org.apache.commons.io.IOUtils;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
 
 import java.io.IOException;
 import java.util.LinkedList;
-import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Queue;
-import java.util.concurrent.Delayed;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 public final class GCMCommunicatorSingleton {
 
     private static final Object LOCK = new Object();
-    private static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
     private static final Integer MAX_AMOUNT_OF_IDS_PER_REQUEST = 950; //Must be 1000 or less
-    private static final Long TAG_SYNC_REQUEST_INITIAL_DELAY = 55L;
-    private static final Integer EXPONENTIAL_WAIT_INCREASE_FACTOR = 2;
+    private static final Long RETRY_BASE_DELAY_MILLIS = 1000L, RETRY_MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final Long RETRY_WHEEL_TICK_MILLIS = 10L;
+    private static final Integer RETRY_WHEEL_BUCKETS = 1024; //About 10 seconds per turn
     private static volatile GCMCommunicatorSingleton mInstance;
     private final Queue<CDelayedTag> mTagRequestQueue = new LinkedList<>();
-    private final Queue<CDelayedRequest> mSyncRequestQueue = new LinkedList<>();
+    /**
+     * Sends the requests. When its queue is full, whoever submits waits for room, so a large fan-out is slowed down
+     * to the pace of the senders instead of piling up requests.
+     */
+    private final ThreadPoolExecutor mSendExecutor;
+    /**
+     * Handles the responses, which may write to the store, so that the few threads of the HTTP client are left to
+     * move bytes. As many requests as admitted can be waiting here, so its queue needs no bound of its own.
+     */
+    private final ThreadPoolExecutor mResponseExecutor;
+    /**
+     * Holds the retries until they are due, and then submits them on behalf of the senders, which must never wait
+     * for room in their own queue.
+     */
+    private final HashedTimingWheel<CDelayedRequest> mRetryWheel;
+    /**
+     * Makes the senders wait before each request while GCM is being sent to too fast or seems overloaded. As the
+     * senders do not wait for the answers, this is what bounds the requests in flight.
+     */
+    private final GCMAdmissionController mAdmissionController;
+    /**
+     * Keeps requests from being sent while GCM is down. Those it refuses are parked in {@link #mRetryWheel}.
+     */
+    private final GCMCircuitBreaker mCircuitBreaker = new GCMCircuitBreaker();
+    private final AtomicLong mParkedRequests = new AtomicLong();
+    private final GCMPayloadEncoder mPayloadEncoder = new GCMPayloadEncoder(readGCMServerUrl(),
+            EnvVars.API_KEY);
 
     private GCMCommunicatorSingleton() {
+        final Integer threads, queueSize, requestsPerSecond;
+        try {
+            threads = Integer.valueOf(IOUtils.toString(GCMCommunicatorSingleton.class.getResourceAsStream
+                    ("/gcm_send_threads")).trim());
+            queueSize = Integer.valueOf(IOUtils.toString(GCMCommunicatorSingleton.class.getResourceAsStream
+                    ("/gcm_send_queue_size")).trim());
+            requestsPerSecond = Integer.valueOf(IOUtils.toString(GCMCommunicatorSingleton.class
+                    .getResourceAsStream("/gcm_max_requests_per_second")).trim());
+        } catch (IOException | NumberFormatException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resources /gcm_send_threads, /gcm_send_queue_size and " +
+                    "/gcm_max_requests_per_second not properly loaded.");
+        }
+        mAdmissionController = new GCMAdmissionController(requestsPerSecond, HTTPRequestsSingleton.getInstance()
+                .getMaxRequestsPerHost());
+        final AtomicInteger threadCount = new AtomicInteger();
+        mSendExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new
+                ArrayBlockingQueue<>(queueSize), runnable -> {
+            final Thread ret = new Thread(runnable, "gcm-sender-" + threadCount.incrementAndGet());
+            ret.setDaemon(Boolean.TRUE);
+            return ret;
+        }, (runnable, executor) -> {
+            MetricsSingleton.getInstance().counter("gcm.send.blocked_submissions").incrementAndGet();
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room to send a request.", e);
+            }
+        });
+        mSendExecutor.prestartAllCoreThreads(); //Tasks put straight into the queue need the threads to exist
+        final AtomicInteger responseThreadCount = new AtomicInteger();
+        mResponseExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new
+                LinkedBlockingQueue<>(), runnable -> {
+            final Thread ret = new Thread(runnable, "gcm-response-handler-" + responseThreadCount.incrementAndGet());
+            ret.setDaemon(Boolean.TRUE);
+            return ret;
+        });
+
+        final MetricsSingleton metrics = MetricsSingleton.getInstance();
+        metrics.gauge("gcm.send.threads", mSendExecutor::getMaximumPoolSize);
+        metrics.gauge("gcm.send.busy_threads", mSendExecutor::getActiveCount);
+        metrics.gauge("gcm.send.saturation", () -> (double) mSendExecutor.getActiveCount() / mSendExecutor
+                .getMaximumPoolSize());
+        metrics.gauge("gcm.send.queue_depth", () -> mSendExecutor.getQueue().size());
+        metrics.gauge("gcm.send.queue_capacity", () -> queueSize);
+        metrics.gauge("gcm.send.completed", mSendExecutor::getCompletedTaskCount);
+        metrics.gauge("gcm.response.queue_depth", () -> mResponseExecutor.getQueue().size());
+
+        mRetryWheel = new HashedTimingWheel<>("gcm-retry-scheduler", RETRY_WHEEL_TICK_MILLIS, TimeUnit
+                .MILLISECONDS, RETRY_WHEEL_BUCKETS, request -> {
+            metrics.timer("gcm.retry.lateness").recordSince(request.getDeadlineNanos());
+            if (request.isParked())
+                mParkedRequests.decrementAndGet();
+            mSendExecutor.execute(new GCMRequestExecutor(request));
+        });
+        metrics.gauge("gcm.retry.pending", mRetryWheel::getPending);
+        metrics.gauge("gcm.breaker.parked", mParkedRequests::get);
     }
 
     public static GCMCommunicatorSingleton getInstance() {
@@ -52,15 +136,15 @@ public final class GCMCommunicatorSingleton {
     /**
      * Queues a sync request for a tag.
      *
-     * @param tag {@link com.jorge.thesis.datamodel.CEntityTagManager.CEntityTag} Tag whose sync is
-     *            requested.
+     * @param tag    {@link com.jorge.thesis.datamodel.CEntityTagManager.CEntityTag} Tag whose sync is
+     *               requested.
+     * @param status {@link CSyncStatus} Status of the sync the tag belongs to.
      * @return <value>TRUE</value> if successful, <value>FALSE</value> if a synchronisation for this tag is already
      * queued.
      */
-    public synchronized Boolean queueTagSyncRequest(CEntityTagManager.CEntityTag tag) {
+    public synchronized Boolean queueTagSyncRequest(CEntityTagManager.CEntityTag tag, CSyncStatus status) {
         Boolean ret = Boolean.TRUE;
-        final CDelayedTag wrapper = new CDelayedTag(tag, TAG_SYNC_REQUEST_INITIAL_DELAY, TimeUnit
-                .MILLISECONDS);
+        final CDelayedTag wrapper = new CDelayedTag(tag, status);
 
         if (!mTagRequestQueue.contains(wrapper)) {
             mTagRequestQueue.add(wrapper); //Inserts at tail
@@ -71,22 +155,23 @@ public final class GCMCommunicatorSingleton {
         return ret;
     }
 
+    /**
+     * A tag waiting for its fan-out, which is due as soon as it is queued.
+     */
     private static class CDelayedTag implements Delayed {
-        private CEntityTagManager.CEntityTag mTag;
-        private Long mDelay;
-        private TimeUnit mDelayUnit;
+        private final CEntityTagManager.CEntityTag mTag;
+        private final CSyncStatus mSyncStatus;
+        private final Long mQueuedAtNanos = System.nanoTime();
 
-        public CDelayedTag(CEntityTagManager.CEntityTag _tag, Long _delay, TimeUnit _unit) {
+        public CDelayedTag(CEntityTagManager.CEntityTag _tag, CSyncStatus _syncStatus) {
             mTag = _tag;
-            mDelay = _delay;
-            mDelayUnit = _unit;
+            mSyncStatus = _syncStatus;
         }
 
         @Override
         public int compareTo(@SuppressWarnings("NullableProblems") Delayed o) {
             if (o instanceof CDelayedTag) {
-                return TimeUtils.convertTimeTo(mDelay, mDelayUnit, TimeUnit.MILLISECONDS).compareTo(o.getDelay(TimeUnit
-                        .MILLISECONDS));
+                return Long.signum(mQueuedAtNanos - ((CDelayedTag) o).mQueuedAtNanos);
             } else
                 throw new UnsupportedOperationException(getClass().getName() + " objects can only be compared as " +
                         "CEntityDelayedTag " +
@@ -96,13 +181,17 @@ public final class GCMCommunicatorSingleton {
 
         @Override
         public long getDelay(@SuppressWarnings("NullableProblems") TimeUnit unit) {
-            return TimeUtils.convertTimeTo(mDelay, mDelayUnit, unit);
+            return unit.convert(mQueuedAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
         }
 
         public CEntityTagManager.CEntityTag getPureTag() {
             return mTag;
         }
 
+        public CSyncStatus getSyncStatus() {
+            return mSyncStatus;
+        }
+
         @Override
         public boolean equals(Object obj) {
             if (!(obj instanceof CDelayedTag))
@@ -133,93 +222,85 @@ public final class GCMCommunicatorSingleton {
         }
     }
 
+    /**
+     * Splits the subscribers of the tag into requests of up to {@link #MAX_AMOUNT_OF_IDS_PER_REQUEST} ids each.
+     * Every request is queued as soon as it is built, so the first one is on its way while the rest are still
+     * being built.
+     */
     private synchronized void sendSyncRequestToAllIds(CDelayedTag tag) {
-        List<CDelayedRequest> requests = createSyncRequests(tag);
-        //Inserts at tail
-        requests.forEach(this::delayAndQueueRequestForExecution);
+        final RoaringBitmap targetIds = CEntityTagManager.getTagSubscribers(tag.getPureTag());
+        final IntIterator targetIdIterator = targetIds.getIntIterator();
+        final Integer targetIdAmount = targetIds.getCardinality();
+        tag.getSyncStatus().onSubscribersRead(targetIdAmount);
+        for (Integer startIndex = 0; startIndex < targetIdAmount; startIndex += MAX_AMOUNT_OF_IDS_PER_REQUEST) {
+            final int[] thisGroupOfDeviceIds = new int[Math.min(MAX_AMOUNT_OF_IDS_PER_REQUEST, targetIdAmount -
+                    startIndex)];
+            for (int i = 0; i < thisGroupOfDeviceIds.length; i++)
+                thisGroupOfDeviceIds[i] = targetIdIterator.next();
+            final CDelayedRequest request = createSyncRequest(tag.getPureTag().getName(), thisGroupOfDeviceIds, tag
+                    .getSyncStatus(), 0);
+            tag.getSyncStatus().onBatchCreated();
+            mSendExecutor.execute(new GCMRequestExecutor(request)); //Waits while the senders are saturated
+        }
     }
 
-    private synchronized List<CDelayedRequest> createSyncRequests(CDelayedTag tag) {
-        List<String> targetIds = CEntityTagManager.getTagSubscribedRegistrationIds(tag.getPureTag());
-        List<CDelayedRequest> ret = new LinkedList<>();
-        final String GOOGLE_GCM_URL;
+    private static String readGCMServerUrl() {
         try {
-            GOOGLE_GCM_URL = IOUtils.toString(FileReadUtils.class.getResourceAsStream
-                    ("/gcm_server_url"));
+            return IOUtils.toString(FileReadUtils.class.getResourceAsStream
+                    ("/gcm_server_url")).trim();
         } catch (IOException e) {
             e.printStackTrace(System.err);
             throw new IllegalStateException("Resource /gcm_server_url not properly loaded.");
         }
-        Integer startIndex;
-        for (Integer i = 0; !((startIndex = i * MAX_AMOUNT_OF_IDS_PER_REQUEST) > targetIds.size()); i++) {
-            List<String> thisGroupOfIds;
-            final Integer lastIndex = (i + 1) *
-                    MAX_AMOUNT_OF_IDS_PER_REQUEST;
-            if (lastIndex < targetIds.size())
-                thisGroupOfIds = targetIds.subList(startIndex, lastIndex);
-            else
-                thisGroupOfIds = targetIds.subList(startIndex, targetIds.size());
-            JSONObject body = new JSONObject();
-            try {
-                body.put("registration_ids", new JSONArray(thisGroupOfIds));
-                JSONObject data = new JSONObject();
-                data.put("tag", tag.getPureTag().name());
-                body.put("data", data);
-            } catch (JSONException e) {
-                e.printStackTrace(System.err);
-                //Will never happen
-            }
-            if (EnvVars.API_KEY == null) {
-                throw new IllegalStateException("API_KEY environment variable not defined. Please check the " +
-                        "technical specification for instructions.");
-            }
-            ret.add(new CDelayedRequest(new Request.Builder().
-                    addHeader("Authorization", "key=" + EnvVars.API_KEY).
-                    addHeader("Content-Type", "application/json").
-                    url(GOOGLE_GCM_URL).
-                    post(RequestBody.create(JSON, body.toString())).build(), tag.getDelay(TimeUnit.MILLISECONDS),
-                    TimeUnit.MILLISECONDS));
-        }
-        return ret;
     }
 
     /**
-     * Queues a delayed request to be sent to as many ids as possible.
+     * Schedules, with back-off, a copy of the request that is only sent to some of its devices.
      *
-     * @param request {@link CDelayedRequest} The request to send.
+     * @param request            {@link CDelayedRequest} The request that must be partially retried.
+     * @param deviceIds          {@link int[]} Dictionary ids of the devices to send it to again.
+     * @param minimumDelayMillis {@link Long} Delay asked for by GCM, zero if none.
      */
-    synchronized void delayAndQueueRequestForExecution(CDelayedRequest request) {
-        request = new CDelayedRequest(request, (long) Math.pow(request.getDelay
-                        (TimeUnit
-                                .MILLISECONDS),
-                EXPONENTIAL_WAIT_INCREASE_FACTOR), TimeUnit.MILLISECONDS);
-
-        if (!mSyncRequestQueue.contains(request)) {
-            mSyncRequestQueue.add(request); // Inserts at tail
-            onSyncRequestAdded();
-        }
+    void retryForDevices(CDelayedRequest request, int[] deviceIds, Long minimumDelayMillis) {
+        scheduleRetry(createSyncRequest(request.getTagName(), deviceIds, request.getSyncStatus(), request
+                .getAttempt()), minimumDelayMillis);
     }
 
-    private synchronized void onSyncRequestAdded() {
-        final long INTERRUPTED_TAKE_WAIT_MILLIS = 1000L;
-        try {
-            CDelayedRequest thisRequest = mSyncRequestQueue.poll();
-            new Thread(new GCMRequestExecutor(thisRequest)).start();
-        } catch (NoSuchElementException e) {
-            //Report, take a break and keep on going
-            e.printStackTrace(System.err);
-            try {
-                Thread.sleep(INTERRUPTED_TAKE_WAIT_MILLIS);
-            } catch (InterruptedException e1) {
-                e.printStackTrace(System.err);
-                //Will never happen
-            }
-            onSyncRequestAdded();
+    private CDelayedRequest createSyncRequest(String tagName, int[] deviceIds, CSyncStatus status, Integer
+            attempt) {
+        if (EnvVars.API_KEY == null) {
+            throw new IllegalStateException("API_KEY environment variable not defined. Please check the " +
+                    "technical specification for instructions.");
         }
+        //The request keeps the same ids its body is written with, so that its results can be matched to them
+        final int[] knownDeviceIds = GCMPayloadEncoder.retainKnownDeviceIds(deviceIds);
+        return new CDelayedRequest(knownDeviceIds, tagName, status, attempt, System.nanoTime());
+    }
+
+    /**
+     * Schedules the next attempt of a request. It is delayed by exponential back-off with full jitter: a random time
+     * between zero and {@link #RETRY_BASE_DELAY_MILLIS} doubled once per previous attempt, up to
+     * {@link #RETRY_MAX_DELAY_MILLIS}; but never less than what GCM asked for. Meant for the senders, so it never
+     * waits.
+     *
+     * @param request            {@link CDelayedRequest} The request to send again.
+     * @param minimumDelayMillis {@link Long} Delay asked for by GCM through Retry-After, zero if none.
+     */
+    void scheduleRetry(CDelayedRequest request, Long minimumDelayMillis) {
+        final Long ceilingMillis = Math.min(RETRY_MAX_DELAY_MILLIS, RETRY_BASE_DELAY_MILLIS << Math.min(request
+                .getAttempt(), 20));
+        final Long delayMillis = Math.max(minimumDelayMillis, ThreadLocalRandom.current().nextLong(ceilingMillis +
+                1));
+
+        final CDelayedRequest retry = new CDelayedRequest(request, System.nanoTime() + TimeUnit.MILLISECONDS
+                .toNanos(delayMillis));
+        MetricsSingleton.getInstance().counter("gcm.retry.scheduled").incrementAndGet();
+        mRetryWheel.schedule(retry, retry.getDeadlineNanos());
     }
 
     private class GCMRequestExecutor implements Runnable {
-        CDelayedRequest mDelayedRequest;
+        private final CDelayedRequest mDelayedRequest;
+        private final Long mQueuedAtNanos = System.nanoTime();
 
         private GCMRequestExecutor(CDelayedRequest _request) {
             mDelayedRequest = _request;
@@ -227,8 +308,65 @@ public final class GCMCommunicatorSingleton {
 
         @Override
         public void run() {
-            GCMResponseHandlerSingleton.getInstance().handleGCMResponse(mDelayedRequest, HTTPRequestsSingleton
-                    .getInstance().performRequest(mDelayedRequest.getPureRequest()));
+            final MetricsSingleton metrics = MetricsSingleton.getInstance();
+            final Long startNanos = System.nanoTime();
+            metrics.timer("gcm.send.queue_wait").record(startNanos - mQueuedAtNanos);
+            final CDelayedRequest request;
+            final Long breakerGeneration;
+            final byte[] body;
+            final Lock heldRegistrationIds = CEntityTagManager.holdRegistrationIds();
+            try {
+                //Devices that are gone may have been dropped from the dictionary since the request was created
+                final int[] knownDeviceIds = GCMPayloadEncoder.retainKnownDeviceIds(mDelayedRequest.getDeviceIds());
+                if (knownDeviceIds.length == 0) {
+                    mDelayedRequest.getSyncStatus().onBatchHandled();
+                    return;
+                }
+                request = knownDeviceIds == mDelayedRequest.getDeviceIds() ? mDelayedRequest : new CDelayedRequest
+                        (knownDeviceIds, mDelayedRequest.getTagName(), mDelayedRequest.getSyncStatus(),
+                                mDelayedRequest.getAttempt(), mDelayedRequest.getDeadlineNanos());
+                breakerGeneration = mCircuitBreaker.tryAcquire();
+                if (breakerGeneration == null) {
+                    //Not sent, so neither handled nor retried as far as the sync is concerned
+                    mParkedRequests.incrementAndGet();
+                    final CDelayedRequest parked = request.parkUntil(mCircuitBreaker.getRetryAtNanos());
+                    mRetryWheel.schedule(parked, parked.getDeadlineNanos());
+                    return;
+                }
+                body = mPayloadEncoder.encode(request.getTagName(), request.getDeviceIds());
+            } finally {
+                heldRegistrationIds.unlock();
+            }
+            final Long admittedAtNanos = mAdmissionController.acquire();
+            //The sender is free again as soon as the request is on its way
+            HTTPRequestsSingleton.getInstance().performPostAsync(mPayloadEncoder.getUrl(), mPayloadEncoder
+                    .getHeaders(), body, response -> mResponseExecutor.execute(() -> onResponse(request, response,
+                    breakerGeneration, admittedAtNanos, startNanos)));
+        }
+
+        private void onResponse(CDelayedRequest request, CHTTPResponse response, Long breakerGeneration, Long
+                admittedAtNanos, Long startNanos) {
+            final MetricsSingleton metrics = MetricsSingleton.getInstance();
+            final Long latencyNanos = System.nanoTime() - admittedAtNanos;
+            metrics.timer("gcm.send.latency").record(latencyNanos);
+            final Boolean failed = Objects.equals(response.getCode(), HTTPRequestsSingleton
+                    .IN_PLACE_ERROR_STATUS_CODE) || response.getCode() >= 500;
+            Boolean overloaded = Boolean.FALSE, handled = Boolean.FALSE;
+            try {
+                overloaded = GCMResponseHandlerSingleton.getInstance().handleGCMResponse(request, response);
+                handled = Boolean.TRUE;
+            } catch (RuntimeException e) {
+                //Report and leave the handler thread alive
+                e.printStackTrace(System.err);
+                metrics.counter("gcm.send.failed").incrementAndGet();
+                request.getSyncStatus().onBatchFailed();
+            } finally {
+                mAdmissionController.release(admittedAtNanos, latencyNanos, overloaded);
+                mCircuitBreaker.onResult(breakerGeneration, failed);
+                metrics.timer("gcm.send.task").recordSince(startNanos);
+            }
+            if (handled)
+                request.getSyncStatus().onBatchHandled();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,166 @@
+package com.jorge.thesis.gcm;
+
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Builds the requests sent to GCM. What is the same for every request, that is the URL, the headers and the JSON
+ * around the registration ids, is built once. The registration ids are neither turned into {@link String}s nor put
+ * in a JSON tree: requests only keep their dictionary ids until they are sent, and then their bytes are copied from
+ * the dictionary straight into a body of the exact length.
+ */
+final class GCMPayloadEncoder {
+
+    private static final byte[] PREFIX = "{\"registration_ids\":[".getBytes(StandardCharsets.UTF_8), DATA_PREFIX =
+            "],\"data\":{\"tag\":".getBytes(StandardCharsets.UTF_8), SUFFIX = "}}".getBytes(StandardCharsets.UTF_8),
+            HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+    private static final Integer INITIAL_SCRATCH_SIZE = 256;
+    private final String mUrl;
+    private final Map<String, String> mHeaders;
+    private final ConcurrentMap<String, byte[]> mQuotedTagNames = new ConcurrentHashMap<>();
+    /**
+     * Where each thread copies registration ids to on their way to the body. It only grows.
+     */
+    private final ThreadLocal<byte[]> mScratch = ThreadLocal.withInitial(() -> new byte[INITIAL_SCRATCH_SIZE]);
+
+    /**
+     * @param _url    {@link String} Where the requests are sent.
+     * @param _apiKey {@link String} Key the requests are authorised with.
+     */
+    GCMPayloadEncoder(String _url, String _apiKey) {
+        mUrl = _url;
+        final Map<String, String> headers = new LinkedHashMap<>();
+        headers.put("Authorization", "key=" + _apiKey);
+        headers.put("Content-Type", "application/json");
+        mHeaders = Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return {@link String} Where the requests are sent.
+     */
+    String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return {@link Map} The headers of every request.
+     */
+    Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    /**
+     * Dictionary ids that have no registration id could only be written as <code>null</code>, which GCM rejects, so
+     * they are left out of the batch before its request is created, and again before it is sent, as the dictionary
+     * drops the registration ids of devices that are gone. Those that are kept can be written as long as the
+     * dictionary is held meanwhile (see {@link CEntityTagManager#holdRegistrationIds()}).
+     *
+     * @param deviceIds {@link int[]} Dictionary ids of the devices of a batch.
+     * @return {@link int[]} The same array if every id has a registration id, or a copy without those that don't.
+     * Results of the request come in the order of this one.
+     */
+    static int[] retainKnownDeviceIds(int[] deviceIds) {
+        final byte[] probe = new byte[0];
+        Integer known = 0;
+        for (int deviceId : deviceIds)
+            if (CEntityTagManager.copyRegistrationId(deviceId, probe) >= 0)
+                known++;
+        if (known == deviceIds.length)
+            return deviceIds;
+        System.err.println("Skipping " + (deviceIds.length - known) + " devices with no registration id.");
+        final int[] ret = new int[known];
+        Integer index = 0;
+        for (int deviceId : deviceIds)
+            if (CEntityTagManager.copyRegistrationId(deviceId, probe) >= 0)
+                ret[index++] = deviceId;
+        return ret;
+    }
+
+    /**
+     * @param tagName   {@link String} Tag whose sync the request carries.
+     * @param deviceIds {@link int[]} Dictionary ids of the devices to send it to, all of them with a registration id
+     *                  (see {@link #retainKnownDeviceIds(int[])}).
+     * @return {@link byte[]} The body of the request, ready to be sent.
+     */
+    byte[] encode(String tagName, int[] deviceIds) {
+        final byte[] quotedTagName = mQuotedTagNames.computeIfAbsent(tagName, name -> JSONObject.quote(name)
+                .getBytes(StandardCharsets.UTF_8));
+        final int[] length = new int[1];
+        final byte[] ret = new byte[measure(quotedTagName, deviceIds, length)];
+        int position = put(PREFIX, ret, 0);
+        for (int index = 0; index < deviceIds.length; index++) {
+            if (index > 0)
+                ret[position++] = ',';
+            final byte[] registrationId = copyRegistrationId(deviceIds[index], length);
+            ret[position++] = '"';
+            for (int i = 0; i < length[0]; i++) {
+                final byte b = registrationId[i];
+                if (!needsEscaping(b))
+                    ret[position++] = b;
+                else if (b == '"' || b == '\\') {
+                    ret[position++] = '\\';
+                    ret[position++] = b;
+                } else {
+                    ret[position++] = '\\';
+                    ret[position++] = 'u';
+                    ret[position++] = '0';
+                    ret[position++] = '0';
+                    ret[position++] = HEX_DIGITS[b >> 4];
+                    ret[position++] = HEX_DIGITS[b & 0xF];
+                }
+            }
+            ret[position++] = '"';
+        }
+        position = put(DATA_PREFIX, ret, position);
+        position = put(quotedTagName, ret, position);
+        put(SUFFIX, ret, position);
+        return ret;
+    }
+
+    private int measure(byte[] quotedTagName, int[] deviceIds, int[] length) {
+        int ret = PREFIX.length + Math.max(0, deviceIds.length - 1) + DATA_PREFIX.length + quotedTagName.length +
+                SUFFIX.length;
+        for (int deviceId : deviceIds) {
+            final byte[] registrationId = copyRegistrationId(deviceId, length);
+            ret += 2 + length[0];
+            for (int i = 0; i < length[0]; i++)
+                if (needsEscaping(registrationId[i]))
+                    ret += registrationId[i] == '"' || registrationId[i] == '\\' ? 1 : 5;
+        }
+        return ret;
+    }
+
+    private static int put(byte[] source, byte[] destination, int position) {
+        System.arraycopy(source, 0, destination, position, source.length);
+        return position + source.length;
+    }
+
+    /**
+     * @param length {@link int[]} Receives the length in bytes of the registration id as its only element.
+     * @return {@link byte[]} The scratch of this thread, which starts with the registration id that has this
+     * dictionary id.
+     */
+    private byte[] copyRegistrationId(int deviceId, int[] length) {
+        byte[] ret = mScratch.get();
+        length[0] = CEntityTagManager.copyRegistrationId(deviceId, ret);
+        if (length[0] > ret.length) {
+            ret = new byte[Integer.highestOneBit(length[0]) << 1];
+            mScratch.set(ret);
+            length[0] = CEntityTagManager.copyRegistrationId(deviceId, ret);
+        }
+        if (length[0] < 0)
+            throw new IllegalStateException("Dictionary id " + deviceId + " has no registration id. Aborting.");
+        return ret;
+    }
+
+    private static Boolean needsEscaping(byte b) {
+        return b == '"' || b == '\\' || (b >= 0 && b < 0x20); //Bytes of multi-byte characters are negative
+    }
+}
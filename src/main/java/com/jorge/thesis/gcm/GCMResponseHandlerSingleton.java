@@ -1,14 +1,18 @@
 package com.jorge.thesis.gcm;
 
-import com.jorge.thesis.io.database.DBDAOSingleton;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+import com.jorge.thesis.io.net.CHTTPResponse;
 import com.jorge.thesis.io.net.HTTPRequestsSingleton;
-import com.squareup.okhttp.Response;
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
 
 public final class GCMResponseHandlerSingleton {
 
@@ -32,55 +36,48 @@ public final class GCMResponseHandlerSingleton {
         return ret;
     }
 
-    void handleGCMResponse(CDelayedRequest delayedRequest, Response response) {
-        Integer responseCode = response.code();
+    /**
+     * @return <value>TRUE</value> if GCM showed signs of being overloaded: no answer, a 5xx or Unavailable results.
+     */
+    Boolean handleGCMResponse(CDelayedRequest delayedRequest, CHTTPResponse response) {
+        Boolean ret = Boolean.FALSE;
+        Integer responseCode = response.getCode();
         if (Objects.equals(responseCode, HTTPRequestsSingleton.IN_PLACE_ERROR_STATUS_CODE)) {
-            GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution(delayedRequest);
+            ret = Boolean.TRUE;
+            retry(delayedRequest, 0L);
         } else {
-            try {
-                final JSONObject body;
+            final Long retryAfterMillis = getRetryAfterMillis(response);
+            if (responseCode == 200) {
+                final GCMResponseReader reader = new GCMResponseReader(response.getBodyReader());
                 try {
-                    body = new JSONObject(response.body().string());
-                } catch (JSONException e) {
-                    e.printStackTrace(System.err);
-                    //Will never happen
-                    return; //Let the compiler know that "body" is always going to be alright if used
-                }
-                if (responseCode == 200) {
-                    try {
-                        final String failure = body.get("failure").toString();
-                        final String canonicalIds = body.get("canonical_ids") //(1)
-                                .toString();
-                        if (((!failure.contentEquals("0") || !canonicalIds.contentEquals("0")))) {
-                            System.err.println("Sending not ideal. Some work has to be done.");
-                            final JSONArray results = body.getJSONArray("results"); //(2)
-                            for (int i = 0; i < results.length(); i++) {
-                                final JSONObject obj = results.getJSONObject(i); //(3)
-                                if (obj.has("message_id")) {
-                                    if (obj.has("registration_id")) {
-                                        final String new_reg_id = obj.getString
-                                                ("registration_id"), old_reg_id = new JSONObject(
-                                                (delayedRequest.getPureRequest().body().toString()))
-                                                .getJSONArray("registration_ids").getString(i);
+                    if (reader.moveToResults()) { //(1)
+                        System.err.println("Sending not ideal. Some work has to be done.");
+                        final List<CSubscriptionChange> registrationIdChanges = new ArrayList<>();
+                        final List<Integer> unavailableIndexes = new ArrayList<>();
+                        try {
+                            while (reader.nextResult()) {
+                                final Integer i = reader.getResultIndex();
+                                final String error = reader.getError();
+                                if (error == null) {
+                                    if (reader.getRegistrationId() != null) {
+                                        final String new_reg_id = reader.getRegistrationId(), old_reg_id =
+                                                getRegistrationId(delayedRequest, i);
                                         System.err.println("Registration id update requested (" + old_reg_id + ") by (" + new_reg_id + ")");
-                                        DBDAOSingleton.getInstance().updateRegistrationIdOnAllTags(old_reg_id, new_reg_id);
+                                        registrationIdChanges.add(CSubscriptionChange.updateDevice(old_reg_id,
+                                                new_reg_id));
                                     } else {
                                         System.out.println("GCM response normal.");
                                     }
                                 } else {
-                                    switch (obj.getString("error")) { // (4)
+                                    switch (error) {
                                         case "Unavailable":
-                                            System.err.println("Server unavailable\nRetrying with exponential " +
-                                                    "back-off...");
-                                            GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution
-                                                    (delayedRequest);
+                                            unavailableIndexes.add(i);
                                             break;
                                         case "NotRegistered":
                                             System.out.println("Detected unregistered device. Removing from database." +
                                                     "..");
-                                            DBDAOSingleton.getInstance().removeRegistrationIdFromAllTags(new JSONObject(
-                                                    (delayedRequest.getPureRequest().body().toString()))
-                                                    .getJSONArray("registration_ids").getString(i)); //(5)
+                                            registrationIdChanges.add(CSubscriptionChange.removeDevice
+                                                    (getRegistrationId(delayedRequest, i)));
                                             break;
                                         case "MissingRegistration":
                                             //Do nothing, we wanted no targets and so it be
@@ -144,54 +141,141 @@ public final class GCMResponseHandlerSingleton {
                                                     "more " +
                                                     "information.");
                                         default:
-                                            System.err.println("Unexpected error identifier " + obj.getString
-                                                    ("error") + " received. Deleting " +
+                                            System.err.println("Unexpected error identifier " + error + " received" +
+                                                    ". Deleting " +
                                                     "id from database...");
-                                            DBDAOSingleton.getInstance().removeRegistrationIdFromAllTags(new JSONObject(
-                                                    (delayedRequest.getPureRequest().body().toString()))
-                                                    .getJSONArray("registration_ids").getString(i));
+                                            registrationIdChanges.add(CSubscriptionChange.removeDevice
+                                                    (getRegistrationId(delayedRequest, i)));
                                     }
                                 }
                             }
+                        } catch (JSONException e) {
+                            e.printStackTrace(System.err);
+                            //(1) The results read so far are handled as usual
+                            unavailableIndexes.addAll(getUnreadIndexesToRetry(delayedRequest, reader));
+                        } finally {
+                            //Also when a result aborts, so that the changes found before it are not lost
+                            applyRegistrationIdChanges(registrationIdChanges);
+                            retryForDevices(delayedRequest, unavailableIndexes, retryAfterMillis);
+                            ret = !unavailableIndexes.isEmpty() || reader.getResultsRead() < delayedRequest
+                                    .getDeviceIds().length;
                         }
-                    } catch (JSONException e) {
-                        e.printStackTrace(System.err);
-                        //Will never happen:
-                        // (1) If the status code is 200 the fields "failure" and "canonical_ids" always exist
-                        // (2) If the status code is 200 and either "failure" or "canonical_ids" are not
-                        // zero, then the "results" field exists
-                        // (3) Standard traversing of a JSONArray using its size as delimiter and never modifying it, so
-                        // never going beyond bounds
-                        // (4) If the status code is 200 and the field "message_id" does not exist, then the field
-                        // "error" always exist
-                        // (5) Gotten to this point, we know that the response is JSON and that it contains a
-                        // "registration_ids" array
-                        // See https://developer.android.com/google/gcm/http
-                        // .html#error_codes for more information
                     }
-                } else if (responseCode == 401) {
-                    throw new IllegalStateException("GCM Error response Authentication Error - See " +
-                            "https://developer.android.com/google/gcm/http.html#error_codes for more " +
-                            "information.");
-                } else if (responseCode == 500) {
-                    System.err.println("Obtained abnormal GCM response code " + responseCode + "\nRetrying with " +
-                            "exponential " +
-                            "back-off...");
-                    GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution(delayedRequest);
-                } else if (responseCode > 500 && responseCode < 600) {
-                    System.err.println("Obtained abnormal GCM response code " + responseCode + "\nRetrying with " +
-                            "exponential " +
-                            "back-off...");
-                    GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution(delayedRequest);
-                } else {
-                    System.err.println("Obtained unexpected GCM response code " + responseCode + "\nRetrying with " +
-                            "exponential " +
-                            "back-off...");
-                    GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution(delayedRequest);
+                } catch (JSONException e) { //Before the first result
+                    e.printStackTrace(System.err);
+                    ret = Boolean.TRUE;
+                    retryForDevices(delayedRequest, getUnreadIndexesToRetry(delayedRequest, reader),
+                            retryAfterMillis);
                 }
-            } catch (IOException e) {
-                e.printStackTrace(System.err);
-                GCMCommunicatorSingleton.getInstance().delayAndQueueRequestForExecution(delayedRequest);
+            } else if (responseCode == 401) {
+                throw new IllegalStateException("GCM Error response Authentication Error - See " +
+                        "https://developer.android.com/google/gcm/http.html#error_codes for more " +
+                        "information.");
+            } else if (responseCode == 500) {
+                System.err.println("Obtained abnormal GCM response code " + responseCode + "\nRetrying with " +
+                        "exponential " +
+                        "back-off...");
+                ret = Boolean.TRUE;
+                retry(delayedRequest, retryAfterMillis);
+            } else if (responseCode > 500 && responseCode < 600) {
+                System.err.println("Obtained abnormal GCM response code " + responseCode + "\nRetrying with " +
+                        "exponential " +
+                        "back-off...");
+                ret = Boolean.TRUE;
+                retry(delayedRequest, retryAfterMillis);
+            } else {
+                System.err.println("Obtained unexpected GCM response code " + responseCode + "\nRetrying with " +
+                        "exponential " +
+                        "back-off...");
+                retry(delayedRequest, retryAfterMillis);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return {@link String} The registration id of the device that a result of the request refers to, or
+     * <value>null</value> if it has been dropped from the dictionary since. Results come in the same order as the ids
+     * in the request.
+     */
+    private static String getRegistrationId(CDelayedRequest delayedRequest, Integer resultIndex) {
+        return CEntityTagManager.getRegistrationId(delayedRequest.getDeviceIds()[resultIndex]);
+    }
+
+    /**
+     * (1) If the status code is 200 the body is well-formed, so a malformed one can only be the connection failing
+     * midway. GCM has accepted the request by then, so the devices whose results were not read may well have got
+     * the message: they are only sent it again if the "failure" counter shows that some of them didn't. Devices
+     * whose results were read are never sent it again, unless they were Unavailable.
+     *
+     * @return {@link List} The indexes of the devices whose results were not read and that must be retried.
+     */
+    private static List<Integer> getUnreadIndexesToRetry(CDelayedRequest delayedRequest, GCMResponseReader reader) {
+        final Integer firstUnread = reader.getResultsRead(), amount = delayedRequest.getDeviceIds().length;
+        final List<Integer> ret = new ArrayList<>();
+        if (reader.getFailure() == null || reader.getFailure() <= reader.getFailuresRead()) {
+            System.err.println("Lost the results of " + (amount - firstUnread) + " devices, none of them known to " +
+                    "have failed. Not sending them the message again.");
+            return ret;
+        }
+        for (Integer i = firstUnread; i < amount; i++)
+            ret.add(i);
+        return ret;
+    }
+
+    /**
+     * Changes of devices whose registration ids were dropped from the dictionary while the request was on its way
+     * are left out, as those devices are already gone.
+     */
+    private static void applyRegistrationIdChanges(List<CSubscriptionChange> changes) {
+        changes.removeIf(change -> change.getDeviceId() == null);
+        if (changes.isEmpty())
+            return;
+        if (CEntityTagManager.applyRegistrationIdChanges(changes))
+            System.out.println("Applied " + changes.size() + " registration id changes requested by a GCM response.");
+        else
+            System.err.println("Unable to apply " + changes.size() + " registration id changes requested by a GCM " +
+                    "response.");
+    }
+
+    /**
+     * Sends the request again, once, only to the devices whose results are at these indexes.
+     */
+    private void retryForDevices(CDelayedRequest delayedRequest, List<Integer> resultIndexes, Long
+            minimumDelayMillis) {
+        if (resultIndexes.isEmpty())
+            return;
+        System.err.println("Server unavailable for " + resultIndexes.size() + " devices\nRetrying them with " +
+                "exponential back-off...");
+        final int[] deviceIds = new int[resultIndexes.size()];
+        for (int i = 0; i < deviceIds.length; i++)
+            deviceIds[i] = delayedRequest.getDeviceIds()[resultIndexes.get(i)];
+        delayedRequest.getSyncStatus().onBatchRetried();
+        GCMCommunicatorSingleton.getInstance().retryForDevices(delayedRequest, deviceIds, minimumDelayMillis);
+    }
+
+    private void retry(CDelayedRequest delayedRequest, Long minimumDelayMillis) {
+        delayedRequest.getSyncStatus().onBatchRetried();
+        GCMCommunicatorSingleton.getInstance().scheduleRetry(delayedRequest, minimumDelayMillis);
+    }
+
+    /**
+     * @return {@link Long} How long GCM asked to wait before retrying through the Retry-After header, which is
+     * either an amount of seconds or a date. Zero if it didn't, or if the header can't be understood.
+     */
+    private static Long getRetryAfterMillis(CHTTPResponse response) {
+        final String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter == null)
+            return 0L;
+        try {
+            return Math.max(0L, TimeUnit.SECONDS.toMillis(Long.valueOf(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            try {
+                return Math.max(0L, ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                        .toInstant().toEpochMilli() - System.currentTimeMillis());
+            } catch (DateTimeParseException e1) {
+                System.err.println("Ignoring malformed Retry-After header " + retryAfter);
+                return 0L;
             }
         }
     }
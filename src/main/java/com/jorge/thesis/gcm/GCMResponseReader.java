@@ -0,0 +1,161 @@
+package com.jorge.thesis.gcm;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+import java.io.Reader;
+
+/**
+ * Reads the body of a successful GCM response as it arrives, one result at a time, without building a tree of it.
+ * Only "failure", "canonical_ids" and "results" are looked at; anything else is skipped.
+ */
+final class GCMResponseReader {
+
+    private final JSONTokener mTokener;
+    private Integer mResultIndex = -1, mResultsRead = 0, mFailuresRead = 0;
+    private Long mFailure; //Null until read
+    private String mRegistrationId, mError;
+
+    GCMResponseReader(Reader _body) {
+        mTokener = new JSONTokener(_body);
+    }
+
+    /**
+     * Reads the body up to the first result.
+     *
+     * @return <value>TRUE</value> if the results must be looked at, <value>FALSE</value> if the counters that
+     * come before them show that every message was delivered to its id as is, or if there are no results.
+     */
+    Boolean moveToResults() throws JSONException {
+        Long canonicalIds = null;
+        expect('{');
+        if (isEndOf('}'))
+            return Boolean.FALSE;
+        do {
+            final String key = nextString();
+            expect(':');
+            switch (key) {
+                case "failure":
+                    mFailure = nextLong();
+                    break;
+                case "canonical_ids":
+                    canonicalIds = nextLong();
+                    break;
+                case "results":
+                    expect('[');
+                    return !(mFailure != null && mFailure == 0 && canonicalIds != null && canonicalIds == 0) &&
+                            !isEndOf(']');
+                default:
+                    mTokener.nextValue();
+            }
+        } while (mTokener.nextClean() == ',');
+        return Boolean.FALSE;
+    }
+
+    /**
+     * Reads the next result. Results come in the same order as the ids in the request.
+     *
+     * @return <value>TRUE</value> if a result was read, <value>FALSE</value> if there are no more.
+     */
+    Boolean nextResult() throws JSONException {
+        if (mResultIndex >= 0 && mTokener.nextClean() != ',')
+            return Boolean.FALSE;
+        mResultIndex++;
+        mRegistrationId = mError = null;
+        expect('{');
+        if (!isEndOf('}'))
+            readResultFields();
+        mResultsRead++;
+        if (mError != null)
+            mFailuresRead++;
+        return Boolean.TRUE;
+    }
+
+    private void readResultFields() throws JSONException {
+        do {
+            final String key = nextString();
+            expect(':');
+            switch (key) {
+                case "registration_id":
+                    mRegistrationId = nextString();
+                    break;
+                case "error":
+                    mError = nextString();
+                    break;
+                default:
+                    mTokener.nextValue(); //"message_id" among others
+            }
+        } while (mTokener.nextClean() == ',');
+    }
+
+    /**
+     * @return {@link Integer} Position of the last result read, <value>-1</value> if none has been read yet.
+     */
+    Integer getResultIndex() {
+        return mResultIndex;
+    }
+
+    /**
+     * @return {@link Integer} The amount of results read whole, which is also the index of the first one that
+     * wasn't.
+     */
+    Integer getResultsRead() {
+        return mResultsRead;
+    }
+
+    /**
+     * @return {@link Integer} The amount of results read whole that have an error.
+     */
+    Integer getFailuresRead() {
+        return mFailuresRead;
+    }
+
+    /**
+     * @return {@link Long} The "failure" counter of the response, <value>null</value> if it wasn't read.
+     */
+    Long getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return {@link String} The canonical registration id of the last result, <value>null</value> if it has none.
+     */
+    String getRegistrationId() {
+        return mRegistrationId;
+    }
+
+    /**
+     * @return {@link String} The error of the last result, <value>null</value> if the message was delivered.
+     */
+    String getError() {
+        return mError;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (mTokener.nextClean() != c)
+            throw mTokener.syntaxError("Expected '" + c + "'");
+    }
+
+    /**
+     * @return <value>TRUE</value> if the next character is the one that closes an empty object or array, which is
+     * then consumed.
+     */
+    private Boolean isEndOf(char c) throws JSONException {
+        if (mTokener.nextClean() == c)
+            return Boolean.TRUE;
+        mTokener.back();
+        return Boolean.FALSE;
+    }
+
+    private String nextString() throws JSONException {
+        expect('"');
+        return mTokener.nextString('"');
+    }
+
+    private Long nextLong() throws JSONException {
+        final Object value = mTokener.nextValue();
+        if (!(value instanceof Number))
+            throw mTokener.syntaxError("Expected a number");
+        return ((Number) value).longValue();
+    }
+}
@@ -0,0 +1,86 @@
+package com.jorge.thesis.gcm;
+
+import com.jorge.thesis.datamodel.CEntityTagManager;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accepts sync requests and runs them on a dedicated thread, so that the request that asked for the sync doesn't
+ * wait for the subscribers to be read and the GCM batches to be built.
+ */
+public final class SyncPipelineSingleton {
+
+    private static final Object LOCK = new Object();
+    private static final Integer MAX_KEPT_STATUSES = 1000;
+    private static volatile SyncPipelineSingleton mInstance;
+    private final ExecutorService mPipeline = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread ret = new Thread(runnable, "sync-pipeline");
+        ret.setDaemon(Boolean.TRUE);
+        return ret;
+    });
+    private final AtomicLong mLastSyncId = new AtomicLong();
+    private final Map<Long, CSyncStatus> mStatuses = new ConcurrentHashMap<>();
+    private final Queue<Long> mStatusesByAge = new ConcurrentLinkedQueue<>();
+
+    private SyncPipelineSingleton() {
+    }
+
+    public static SyncPipelineSingleton getInstance() {
+        SyncPipelineSingleton ret = mInstance;
+        if (ret == null) {
+            synchronized (LOCK) {
+                ret = mInstance;
+                if (ret == null) {
+                    ret = new SyncPipelineSingleton();
+                    mInstance = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Queues the sync of a set of tags.
+     *
+     * @param tags {@link List} Tags to sync, already validated.
+     * @return {@link CSyncStatus} The status of the sync, which is updated as it progresses.
+     */
+    public CSyncStatus submitSync(List<String> tags) {
+        final CSyncStatus ret = new CSyncStatus(mLastSyncId.incrementAndGet(), tags);
+        mStatuses.put(ret.getId(), ret);
+        mStatusesByAge.add(ret.getId());
+        while (mStatusesByAge.size() > MAX_KEPT_STATUSES) {
+            final Long oldest = mStatusesByAge.poll();
+            if (oldest != null)
+                mStatuses.remove(oldest);
+        }
+
+        mPipeline.execute(() -> {
+            ret.onStarted();
+            try {
+                for (String tag : tags)
+                    CEntityTagManager.createTagSyncRequest(tag, ret);
+                ret.onFanOutFinished();
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+                ret.onFanOutFailed();
+            }
+        });
+
+        return ret;
+    }
+
+    /**
+     * @return {@link CSyncStatus} The status of the sync, or <value>null</value> if it is unknown or too old.
+     */
+    public CSyncStatus getSyncStatus(Long syncId) {
+        return mStatuses.get(syncId);
+    }
+}
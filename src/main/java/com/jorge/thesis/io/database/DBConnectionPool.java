@@ -0,0 +1,227 @@
+package com.jorge.thesis.io.database;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fixed-size pool of database connections. A connection is taken for a single operation and given back when it
+ * ends, so operations on different connections run concurrently. Every connection keeps its statements prepared
+ * between operations.
+ * <p>
+ * A connection line without host (<code>jdbc:derby:NAME</code>) runs the database embedded in this process
+ * instead of reaching a Derby network server. The embedded engine is tuned with the resource
+ * /derby_embedded_properties (unless the same properties are given with -D) and shut down cleanly on exit.
+ */
+final class DBConnectionPool {
+
+    private static final Long ACQUIRE_TIMEOUT_SECONDS = 30L;
+    private static final String EMBEDDED_PREFIX = "jdbc:derby:", NETWORK_PREFIX = "jdbc:derby://";
+    private static final String EMBEDDED_SHUTDOWN_LINE = "jdbc:derby:;shutdown=true";
+    private static final String EMBEDDED_SHUTDOWN_STATE = "XJ015";
+    private final String mConnectionLine;
+    private final BlockingQueue<PooledConnection> mIdleConnections;
+
+    DBConnectionPool(String _connectionLine, Integer _size) throws SQLException {
+        mConnectionLine = _connectionLine;
+        if (isEmbedded(mConnectionLine))
+            startEmbeddedEngine();
+        mIdleConnections = new ArrayBlockingQueue<>(_size);
+        for (Integer i = 0; i < _size; i++)
+            mIdleConnections.add(new PooledConnection(openConnection()));
+    }
+
+    private static Boolean isEmbedded(String connectionLine) {
+        return connectionLine.startsWith(EMBEDDED_PREFIX) && !connectionLine.startsWith(NETWORK_PREFIX);
+    }
+
+    /**
+     * Sets the tuning properties before the engine boots, which happens with the first connection, and makes sure
+     * that the engine is shut down on exit so that the next startup needs no recovery.
+     */
+    private static void startEmbeddedEngine() {
+        final Properties properties = new Properties();
+        try (InputStream propertiesStream = DBConnectionPool.class.getResourceAsStream
+                ("/derby_embedded_properties")) {
+            properties.load(propertiesStream);
+        } catch (IOException | NullPointerException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resource /derby_embedded_properties not properly loaded.");
+        }
+        for (String name : properties.stringPropertyNames())
+            if (System.getProperty(name) == null)
+                System.setProperty(name, properties.getProperty(name));
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                DriverManager.getConnection(EMBEDDED_SHUTDOWN_LINE);
+            } catch (SQLException e) {
+                if (!EMBEDDED_SHUTDOWN_STATE.equals(e.getSQLState())) { //A clean shutdown always throws this one
+                    System.err.println("ERROR STATE: " + e.getSQLState());
+                    e.printStackTrace(System.err);
+                    return;
+                }
+            }
+            System.out.println("Embedded database shut down.");
+        }, "derby-shutdown"));
+    }
+
+    private Connection openConnection() throws SQLException {
+        final Connection ret = DriverManager.getConnection(mConnectionLine);
+        ret.setAutoCommit(Boolean.TRUE);
+        return ret;
+    }
+
+    /**
+     * Waits for an idle connection. It must be closed once the operation is done, which gives it back to the pool.
+     *
+     * @return {@link PooledConnection} The connection, in autocommit mode.
+     */
+    PooledConnection acquire() {
+        final PooledConnection ret;
+        try {
+            ret = mIdleConnections.poll(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a database connection. Aborting.");
+        }
+        if (ret == null)
+            throw new IllegalStateException("No database connection became available in " +
+                    ACQUIRE_TIMEOUT_SECONDS + " seconds. Aborting.");
+        return ret;
+    }
+
+    private void release(PooledConnection connection) {
+        PooledConnection released = connection;
+        if (connection.mBroken) {
+            connection.closeQuietly();
+            try {
+                released = new PooledConnection(openConnection());
+            } catch (SQLException e) {
+                final String errorState = e.getSQLState();
+                System.err.println("ERROR STATE: " + errorState);
+                e.printStackTrace(System.err);
+                System.err.println("Unable to replace a broken database connection. The pool has shrunk by one.");
+                return;
+            }
+        }
+        mIdleConnections.add(released);
+    }
+
+    final class PooledConnection implements AutoCloseable {
+
+        private final Connection mConnection;
+        private final Map<DBDAOSingleton.Operation, PreparedStatement> mStatementCache = new EnumMap<>
+                (DBDAOSingleton.Operation.class);
+        private Boolean mBroken = Boolean.FALSE;
+
+        private PooledConnection(Connection _connection) {
+            mConnection = _connection;
+        }
+
+        /**
+         * @return {@link PreparedStatement} The statement of the operation, prepared only the first time it is asked
+         * for on this connection. It must not be closed.
+         */
+        PreparedStatement prepare(DBDAOSingleton.Operation operation) throws SQLException {
+            PreparedStatement ret = mStatementCache.get(operation);
+            if (ret == null) {
+                ret = mConnection.prepareStatement(operation.getSql());
+                mStatementCache.put(operation, ret);
+            }
+            return ret;
+        }
+
+        /**
+         * Runs a statement that is not worth keeping prepared, like DDL or anything that names a table.
+         */
+        void executeOnce(String sql, String... parameters) throws SQLException {
+            try (PreparedStatement statement = mConnection.prepareStatement(sql)) {
+                for (Integer i = 0; i < parameters.length; i++)
+                    statement.setString(i + 1, parameters[i]);
+                statement.execute();
+            }
+        }
+
+        Connection getConnection() {
+            return mConnection;
+        }
+
+        void beginTransaction() throws SQLException {
+            mConnection.setAutoCommit(Boolean.FALSE);
+        }
+
+        void commit() throws SQLException {
+            mConnection.commit();
+            mConnection.setAutoCommit(Boolean.TRUE);
+        }
+
+        void rollback() throws SQLException {
+            mConnection.rollback();
+            mConnection.setAutoCommit(Boolean.TRUE);
+        }
+
+        /**
+         * Must be called with every error of this connection, so that it is replaced if it is no longer usable.
+         */
+        void onError(SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith("08")) //Connection exceptions
+                mBroken = Boolean.TRUE;
+        }
+
+        /**
+         * Has the connection replaced when it is released, for when it can't be told whether it is still usable.
+         */
+        void discard() {
+            mBroken = Boolean.TRUE;
+        }
+
+        /**
+         * Gives the connection back to the pool, rolling back any transaction left open.
+         */
+        @Override
+        public void close() {
+            try {
+                if (!mConnection.getAutoCommit())
+                    rollback();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+                mBroken = Boolean.TRUE;
+            }
+            release(this);
+        }
+
+        private void closeQuietly() {
+            final Iterator<PreparedStatement> statements = mStatementCache.values().iterator();
+            while (statements.hasNext()) {
+                closeQuietly(statements.next());
+                statements.remove();
+            }
+            try {
+                mConnection.close();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+                //Nothing else to do with a broken connection
+            }
+        }
+
+        private void closeQuietly(PreparedStatement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                e.printStackTrace(System.err);
+                //Should never happen
+            }
+        }
+    }
+}
@@ -1,38 +1,88 @@
 package com.jorge.thesis.io.database;
 
+import com.jorge.thesis.datamodel.CDeviceSubscription;
 import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
 import com.jorge.thesis.io.file.FileReadUtils;
+import com.jorge.thesis.io.store.SubscriptionStore;
 import org.apache.commons.io.IOUtils;
 
 import java.io.IOException;
 import java.sql.*;
-import java.util.Collections;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Locale;
-
-public final class DBDAOSingleton {
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Subscriptions are stored in a single table of (tag id, registration id) rows, indexed both ways, so that
+ * anything done to a device on all of its tags is a single statement. Tag names and their ids are kept in a table of
+ * their own.
+ */
+public final class DBDAOSingleton implements SubscriptionStore {
 
     private static final Object LOCK = new Object();
-    private static final Object DB_ACCESS_LOCK = new Object();
-    private static final String TAGS_TABLE_NAME = "TAGS_TABLE";
+    private static final String SCHEMA_NAME = "GCM"; //Keeps the tables apart from those of old tags
+    private static final String TAGS_TABLE_NAME = SCHEMA_NAME + ".TAGS";
+    private static final String TAGS_TABLE_KEY_TAG_ID = "TAG_ID";
     private static final String TAGS_TABLE_KEY_TAG_NAME = "TAG_NAME";
-    private static final String TAG_TABLE_KEY_SUBSCRIBER = "TAG_SUBSCRIBER";
+    private static final String SUBSCRIPTIONS_TABLE_NAME = SCHEMA_NAME + ".SUBSCRIPTIONS";
+    private static final String SUBSCRIPTIONS_TABLE_KEY_TAG_ID = "TAG_ID";
+    private static final String SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID = "DEVICE_ID";
+    private static final String SUBSCRIPTIONS_DEVICE_ID_INDEX_NAME = SCHEMA_NAME + ".SUBSCRIPTIONS_DEVICE_ID";
+    private static final String LEGACY_TAGS_TABLE_NAME = "TAGS_TABLE";
+    private static final String LEGACY_TAGS_TABLE_KEY_TAG_NAME = "TAG_NAME";
+    private static final String LEGACY_TAG_TABLE_KEY_SUBSCRIBER = "TAG_SUBSCRIBER";
+    private static final Integer BULK_BATCH_SIZE = 1000;
+    private static final Integer SUBSCRIBERS_FETCH_SIZE = 1000;
+    private static final Integer MAX_TRANSACTION_ATTEMPTS = 3;
+    private static final List<String> TRANSIENT_ERROR_STATES = Arrays.asList("40001", "40XL1"); //Deadlock, timeout
+    private static final String UNKNOWN_TAG_ID_ERROR_STATE = "23503"; //Foreign key violation
     private static volatile DBDAOSingleton mInstance;
-    private final Connection mConnection;
+    private final DBConnectionPool mConnectionPool;
+    /**
+     * The database id of every known tag, so that statements use it directly. Only this process creates tags, so it
+     * can be trusted; but it is emptied whenever a statement fails because a tag id it used doesn't exist, and
+     * filled again as tags are used.
+     */
+    private final ConcurrentMap<String, Integer> mTagIdCatalog = new ConcurrentHashMap<>();
 
     private DBDAOSingleton() {
+        this(readResource("/database_connection_line"), readPoolSize());
+    }
+
+    /**
+     * Works on the database of the connection line instead of that of the resources, as tests and benchmarks do.
+     */
+    DBDAOSingleton(String _connectionLine, Integer _poolSize) {
         try {
-            mConnection = DriverManager.getConnection(IOUtils.toString(FileReadUtils.class.getResourceAsStream
-                    ("/database_connection_line")));
-            mConnection.setAutoCommit(Boolean.TRUE);
-        } catch (SQLException | IOException e) {
+            mConnectionPool = new DBConnectionPool(_connectionLine, _poolSize);
+        } catch (SQLException e) {
             e.printStackTrace(System.err);
             //Should never happen
             throw new IllegalStateException("Unable to initialize database connection. Aborting.");
         }
     }
 
+    private static String readResource(String name) {
+        try {
+            return IOUtils.toString(FileReadUtils.class.getResourceAsStream(name));
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            //Should never happen
+            throw new IllegalStateException("Resource " + name + " not properly loaded.");
+        }
+    }
+
+    private static Integer readPoolSize() {
+        try {
+            return Integer.valueOf(readResource("/database_pool_size").trim());
+        } catch (NumberFormatException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resource /database_pool_size not properly loaded.");
+        }
+    }
+
     public static DBDAOSingleton getInstance() {
         DBDAOSingleton ret = mInstance;
         if (ret == null) {
@@ -47,481 +97,419 @@ public final class DBDAOSingleton {
         return ret;
     }
 
-    public void createDatabaseEnvironment() {
-        PreparedStatement tagsTableCreation;
-        try {
-            tagsTableCreation = mConnection.prepareStatement("CREATE TABLE " + TAGS_TABLE_NAME +
-                    " (" +
-                    TAGS_TABLE_KEY_TAG_NAME + " CHAR(254) PRIMARY KEY" +
-                    " )");
-        } catch (SQLException e) {
-            final String errorState = e.getSQLState();
-            System.err.println("ERROR STATE: " + errorState);
-            e.printStackTrace(System.err);
-            //Should never happen
-            throw new IllegalStateException("Error when preparing one of the commands for database environment setup." +
-                    " Aborting.");
-        }
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                tagsTableCreation.execute();
-            } catch (SQLException e) {
-                final String errorState = e.getSQLState();
-                if (!e.getSQLState().contentEquals("X0Y32")) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    throw new IllegalStateException("Unexpected error during database environment setup. Aborting.");
+    /**
+     * Creates the tables if they don't exist yet and moves into them the subscriptions of previous versions, which
+     * had a table per tag.
+     */
+    @Override
+    public void createEnvironment() {
+        final String[] environmentCreationCmds = {
+                "CREATE SCHEMA " + SCHEMA_NAME,
+                "CREATE TABLE " + TAGS_TABLE_NAME + " (" +
+                        TAGS_TABLE_KEY_TAG_ID + " INT GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " +
+                        TAGS_TABLE_KEY_TAG_NAME + " VARCHAR(254) NOT NULL UNIQUE" +
+                        " )",
+                "CREATE TABLE " + SUBSCRIPTIONS_TABLE_NAME + " (" +
+                        SUBSCRIPTIONS_TABLE_KEY_TAG_ID + " INT NOT NULL REFERENCES " + TAGS_TABLE_NAME + " (" +
+                        TAGS_TABLE_KEY_TAG_ID + "), " +
+                        SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " VARCHAR(254) NOT NULL, " +
+                        "PRIMARY KEY (" + SUBSCRIPTIONS_TABLE_KEY_TAG_ID + ", " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + ")" +
+                        " )",
+                "CREATE INDEX " + SUBSCRIPTIONS_DEVICE_ID_INDEX_NAME + " ON " + SUBSCRIPTIONS_TABLE_NAME + " (" +
+                        SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + ")"};
+
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+            for (String cmd : environmentCreationCmds) {
+                try {
+                    connection.executeOnce(cmd);
+                } catch (SQLException e) {
+                    final String errorState = e.getSQLState();
+                    if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("X0Y68")) {
+                        System.err.println("ERROR STATE: " + errorState);
+                        e.printStackTrace(System.err);
+                        throw new IllegalStateException("Unexpected error during database environment setup. " +
+                                "Aborting.");
+                    }
+                    // If it already exists it's fine, just don't recreate it
                 }
-                // If it already exists it's fine, just don't recreate it
             }
         }
+
+        migrateLegacyTagTables();
     }
 
-    public Boolean addTag(String tagName) {
-        PreparedStatement tagRowInsertion, tagTableCreation;
-        try {
-            tagTableCreation = mConnection.prepareStatement("CREATE TABLE " + tagName.toUpperCase(Locale.ENGLISH) +
-                    " (" +
-                    TAG_TABLE_KEY_SUBSCRIBER + " CHAR(254) PRIMARY KEY" +
-                    " )");
-            tagRowInsertion = mConnection.prepareStatement("INSERT INTO " + TAGS_TABLE_NAME + " VALUES ('" + tagName
-                    + "')");
-        } catch (SQLException e) {
-            final String errorState = e.getSQLState();
-            if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505") && tableExists(tagName)) {
+    /**
+     * Every tag is moved in a transaction of its own that also drops its old table, so an interrupted migration
+     * carries on from the first tag not moved the next time the server starts.
+     * <p>
+     * This is not an online migration: it runs before the server starts listening, and the server waits for it.
+     * There would be little to gain from serving during it, as the in-memory subscription index has to read every
+     * subscription from the new table before any request can be answered anyway; and reading from both layouts
+     * while the copy goes on would spread the old layout over every query of this class.
+     */
+    private void migrateLegacyTagTables() {
+        if (!legacyTableExists(LEGACY_TAGS_TABLE_NAME))
+            return;
+
+        final List<String> legacyTags = new LinkedList<>();
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+            try (Statement statement = connection.getConnection().createStatement(); ResultSet resultSet = statement
+                    .executeQuery("SELECT " + LEGACY_TAGS_TABLE_KEY_TAG_NAME + " FROM " + LEGACY_TAGS_TABLE_NAME)) {
+                while (resultSet.next())
+                    legacyTags.add(resultSet.getString(LEGACY_TAGS_TABLE_KEY_TAG_NAME).trim());
+            } catch (SQLException e) {
+                final String errorState = e.getSQLState();
                 System.err.println("ERROR STATE: " + errorState);
                 e.printStackTrace(System.err);
-                //Should never happen
-                System.err.println("Error when preparing one of the commands for database tag insertion." +
-                        " Aborting insertion.");
+                throw new IllegalStateException("Unexpected error when reading the tags to migrate. Aborting.");
             }
-            //If the tag is duplicated, no tag is added and therefore the operation fails
-            return Boolean.FALSE;
         }
 
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                tagTableCreation.execute();
-            } catch (SQLException e) {
-                final String errorState = e.getSQLState();
-                if (!e.getSQLState().contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    throw new IllegalStateException("Unexpected error during tag insertion into database. Aborting.");
-                } //If the table exists it's okay, just return control and continue
+        System.out.println("Migrating " + legacyTags.size() + " tags from per-tag tables into " +
+                SUBSCRIPTIONS_TABLE_NAME + "...");
+        for (String tag : legacyTags) {
+            final List<TransactionStep> migrationSteps = new LinkedList<>();
+            migrationSteps.add(connection -> execute(connection, Operation.ADD_TAG_IF_ABSENT, tag, tag));
+            if (legacyTableExists(tag)) { //Table names can't be parameters, but the tags come from the database
+                migrationSteps.add(connection -> connection.executeOnce("INSERT INTO " + SUBSCRIPTIONS_TABLE_NAME +
+                        " (" + SUBSCRIPTIONS_TABLE_KEY_TAG_ID + ", " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + ") SELECT " +
+                        "t." + TAGS_TABLE_KEY_TAG_ID + ", TRIM(l." + LEGACY_TAG_TABLE_KEY_SUBSCRIBER + ") FROM " + tag +
+                        " l, " + TAGS_TABLE_NAME + " t WHERE t." + TAGS_TABLE_KEY_TAG_NAME + " = ?", tag));
+                migrationSteps.add(connection -> connection.executeOnce("DROP TABLE " + tag));
             }
+            migrationSteps.add(connection -> connection.executeOnce("DELETE FROM " + LEGACY_TAGS_TABLE_NAME + " " +
+                    "WHERE " + LEGACY_TAGS_TABLE_KEY_TAG_NAME + " = ?", tag));
+            executeInTransaction(migrationSteps, "migration of tag " + tag);
+            System.out.println("Migrated tag " + tag + ".");
+        }
+        executeInTransaction(Collections.singletonList(connection -> connection.executeOnce("DROP TABLE " +
+                LEGACY_TAGS_TABLE_NAME)), "removal of the old tags table");
+    }
+
+    @Override
+    public Boolean addTag(String tagName) {
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
             try {
-                tagRowInsertion.execute();
+                execute(connection, Operation.ADD_TAG, tagName);
             } catch (SQLException e) {
+                connection.onError(e);
                 final String errorState = e.getSQLState();
-                if (!e.getSQLState().contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
+                if (!errorState.contentEquals("23505")) {
                     System.err.println("ERROR STATE: " + errorState);
                     e.printStackTrace(System.err);
                     throw new IllegalStateException("Unexpected error during tag insertion into database. Aborting.");
-                } //If the table exists it's okay, just return
+                } //If the tag exists it's okay, just return
             }
         }
 
         System.out.println("Added tag " + tagName + " to database.");
 
-        return Boolean.TRUE;
+        return findTagId(tagName) != null;
     }
 
-    public List<String> getSubscribedRegistrationIds(CEntityTagManager.CEntityTag tag) {
-        PreparedStatement idSelectionStatement;
-        try {
-            idSelectionStatement = mConnection.prepareStatement("SELECT " + TAG_TABLE_KEY_SUBSCRIBER + " FROM " +
-                    tag.name());
-        } catch (SQLException e) {
-            if (tableExists(tag.name())) {
-                e.printStackTrace(System.err);
-                final String errorState = e.getSQLState();
-                System.err.println("ERROR STATE: " + errorState);
-                //Should never happen
-                System.err.println("Error when preparing the command for retrieval of the subscribed ids for tag " + tag
-                        .name() +
-                        ". Returning empty collection of ids.");
-            }
-            System.err.println("During retrieval of the subscribed ids for tag " + tag.name() + ", it has been " +
-                    "discovered that its table does not exist. Returning empty collection of ids.");
-            return Collections.<String>emptyList();
-        }
-
-        final List<String> ret = new LinkedList<>();
-
-        try {
-            idSelectionStatement.execute();
-            ResultSet resultSet = idSelectionStatement.getResultSet();
-            while (resultSet.next()) {
-                ret.add(resultSet.getString(TAG_TABLE_KEY_SUBSCRIBER).trim());
-            }
-        } catch (SQLException e) {
-            final String errorState = e.getSQLState();
-            e.printStackTrace(System.err);
-            System.err.println("ERROR STATE: " + errorState);
-            //Should never happen
-            System.err.println("Error when preparing the command for retrieval of subscribed it to tag" + tag.name() +
-                    ". Returning empty collection of ids.");
-            return Collections.<String>emptyList();
-        }
-
-        System.out.println("Registration ids " + ret.toString() + " are subscribed to " + tag.name());
-
+    /**
+     * @return {@link Integer} The database id of the tag, creating the tag first if it doesn't exist.
+     */
+    private Integer getOrCreateTagId(String tagName) {
+        Integer ret = findTagId(tagName);
+        if (ret == null && addTag(tagName))
+            ret = mTagIdCatalog.get(tagName);
         return ret;
     }
 
     /**
-     * Assumes that the new id doesn't cause any conflicts. If it does,
-     * it removes the old id.
+     * @return {@link Integer} The database id of the tag, or <value>null</value> if it doesn't exist. The database
+     * is only asked if the tag is not in the catalog.
      */
-    public Boolean updateRegistrationIdOnAllTags(String oldId, String newId) {
-        final List<String> allTags = getTagsNow();
-        final List<PreparedStatement> tagRowUpdateCmds = new LinkedList<>();
-        for (String tag : allTags) {
+    private Integer findTagId(String tagName) {
+        final Integer ret = mTagIdCatalog.get(tagName);
+        if (ret != null)
+            return ret;
+
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
             try {
-                if (tableExists(tag)) {
-                    tagRowUpdateCmds.add(mConnection.prepareStatement("UPDATE " + tag + " SET " +
-                            TAG_TABLE_KEY_SUBSCRIBER + " = '" +
-                            newId + "' WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + " IN" +
-                            " (SELECT " + TAG_TABLE_KEY_SUBSCRIBER + " FROM " + tag + " WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + "='" +
-                            oldId + "')"));
+                final PreparedStatement selection = connection.prepare(Operation.GET_TAG_ID);
+                selection.setString(1, tagName);
+                try (ResultSet resultSet = selection.executeQuery()) {
+                    if (!resultSet.next())
+                        return null;
+                    mTagIdCatalog.put(tagName, resultSet.getInt(1));
+                    return resultSet.getInt(1);
                 }
             } catch (SQLException e) {
-                final String errorState = e.getSQLState();
-                if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505") && tableExists(tag)) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    //Should never happen
-                    System.err.println("Unexpected error when preparing one of the commands for update of device " +
-                            oldId + " " + "in database. Aborting update.");
-                }
-                //If the tag is duplicated, no tag is added and therefore the operation fails
+                connection.onError(e);
+                final String errorCode = e.getSQLState();
+                e.printStackTrace(System.err);
+                System.err.println("ERROR STATE: " + errorCode);
+                //Should never happen
+                throw new IllegalStateException("Unexpected error when looking up the id of tag " + tagName +
+                        "." + " " + "Aborting.");
             }
         }
+    }
 
-        synchronized (DB_ACCESS_LOCK) {
+    /**
+     * Hands the subscribers of the tag to the consumer one by one as they are read, through a forward-only cursor
+     * that fetches {@link #SUBSCRIBERS_FETCH_SIZE} rows at a time, so that memory use doesn't depend on the size of
+     * the tag.
+     *
+     * @return <value>TRUE</value> if every subscriber was read, <value>FALSE</value> if reading them failed midway.
+     */
+    @Override
+    public Boolean forEachSubscribedRegistrationId(CEntityTagManager.CEntityTag tag, Consumer<String> consumer) {
+        final Integer tagId = findTagId(tag.getName());
+        if (tagId == null)
+            return Boolean.TRUE;
+
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+            final PreparedStatement selection;
             try {
-                mConnection.setAutoCommit(Boolean.FALSE);
+                selection = connection.prepare(Operation.GET_SUBSCRIBERS);
+                selection.setFetchSize(SUBSCRIBERS_FETCH_SIZE);
+                selection.setInt(1, tagId);
             } catch (SQLException e) {
+                connection.onError(e);
+                final String errorState = e.getSQLState();
                 e.printStackTrace(System.err);
+                System.err.println("ERROR STATE: " + errorState);
                 //Should never happen
-                throw new IllegalStateException("Unexpected error when disabling autocommit for removal of device " +
-                        oldId + " " +
-                        " from database.");
+                System.err.println("Error when preparing the retrieval of the ids subscribed to tag " + tag.getName() +
+                        ".");
+                return Boolean.FALSE;
             }
-            for (PreparedStatement cmd : tagRowUpdateCmds) {
-                try {
-                    cmd.execute();
-                } catch (SQLException e) {
-                    final String errorState = e.getSQLState();
-                    if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                        System.err.println("ERROR STATE: " + errorState);
-                        e.printStackTrace(System.err);
-                        try {
-                            mConnection.rollback();
-                            throw new IllegalStateException("Unexpected error during update of device " + oldId +
-                                    " " +
-                                    "in database. Aborting update.");
-                        } catch (SQLException e1) {
-                            e1.printStackTrace(System.err);
-                            //Should never happen
-                            throw new IllegalStateException("Unexpected error during update of device " + oldId +
-                                    " " +
-                                    "in database. Aborting update failed.");
-                        }
-                    }
+            try (ResultSet resultSet = selection.executeQuery()) {
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getString(1));
                 }
-            }
-            try {
-                mConnection.commit();
-                mConnection.setAutoCommit(Boolean.TRUE);
             } catch (SQLException e) {
+                connection.onError(e);
+                final String errorState = e.getSQLState();
                 e.printStackTrace(System.err);
+                System.err.println("ERROR STATE: " + errorState);
                 //Should never happen
-                throw new IllegalStateException("Unexpected error when restoring state during update of device " +
-                        oldId + " " +
-                        "in database.");
+                System.err.println("Error when retrieving the ids subscribed to tag " + tag.getName() + ".");
+                return Boolean.FALSE;
             }
         }
 
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Moves every subscription of the old id to the new one. Where the new id is already subscribed to a tag, the
+     * subscription of the old id is dropped instead.
+     */
+    @Override
+    public Boolean updateRegistrationIdOnAllTags(String oldId, String newId) {
+        executeInTransaction(Arrays.asList(
+                connection -> execute(connection, Operation.REMOVE_DEVICE_CONFLICTS, oldId, newId),
+                connection -> execute(connection, Operation.UPDATE_DEVICE, newId, oldId)),
+                "update of device " + oldId);
+
         System.out.println("Updated device " + oldId + " in database for " + newId + ".");
 
         return Boolean.TRUE;
     }
 
+    @Override
     public Boolean removeRegistrationIdFromAllTags(String deviceId) {
-        final List<String> allTags = getTagsNow();
-        final List<PreparedStatement> tagRowRemovalCmds = new LinkedList<>();
-        for (String tag : allTags) {
-            try {
-                if (tableExists(tag)) {
-                    tagRowRemovalCmds.add(mConnection.prepareStatement("DELETE FROM " + tag + " WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + " IN" +
-                            " (SELECT " + TAG_TABLE_KEY_SUBSCRIBER + " FROM " + tag + " WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + "='" +
-                            deviceId + "')"));
-                }
-            } catch (SQLException e) {
-                final String errorState = e.getSQLState();
-                if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505") && tableExists(tag)) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    //Should never happen
-                    System.err.println("Unexpected error when preparing one of the commands for removal of device " +
-                            deviceId + " " + "from database. Aborting removal.");
-                }
-                //If the tag is duplicated, no tag is added and therefore the operation fails
-            }
-        }
-
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                mConnection.setAutoCommit(Boolean.FALSE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when disabling autocommit for removal of device " +
-                        deviceId + " " +
-                        " from database.");
-            }
-            for (PreparedStatement cmd : tagRowRemovalCmds) {
-                try {
-                    cmd.execute();
-                } catch (SQLException e) {
-                    final String errorState = e.getSQLState();
-                    if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                        System.err.println("ERROR STATE: " + errorState);
-                        e.printStackTrace(System.err);
-                        try {
-                            mConnection.rollback();
-                            throw new IllegalStateException("Unexpected error during removal of device " + deviceId +
-                                    " " +
-                                    "from database. Aborting removal.");
-                        } catch (SQLException e1) {
-                            e1.printStackTrace(System.err);
-                            //Should never happen
-                            throw new IllegalStateException("Unexpected error during removal of device " + deviceId +
-                                    " " +
-                                    "from database. Aborting removal failed.");
-                        }
-                    }
-                }
-            }
-            try {
-                mConnection.commit();
-                mConnection.setAutoCommit(Boolean.TRUE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when restoring state during removal of device " +
-                        deviceId + " " +
-                        "from database.");
-            }
-        }
+        executeInTransaction(Collections.singletonList(connection -> execute(connection, Operation.REMOVE_DEVICE,
+                deviceId)), "removal of device " + deviceId);
 
         System.out.println("Removed device " + deviceId + " from database.");
 
         return Boolean.TRUE;
     }
 
+    /**
+     * Subscribes the device to all tags with a single batch. Subscriptions that already exist are left untouched
+     * instead of failing the batch.
+     */
+    @Override
     public Boolean addSubscriptions(String deviceId, List<String> tagList) {
-        final List<PreparedStatement> tagRowInsertionCmds = new LinkedList<>();
-        final List<String> existingTagNames = new LinkedList<>();
+        final List<Object[]> tagRows = new ArrayList<>(tagList.size());
         for (String tag : tagList) {
-            try {
-                if (!tableExists(tag)) {
-                    this.addTag(tag);
-                }
-                tagRowInsertionCmds.add(mConnection.prepareStatement("INSERT INTO " + tag + " VALUES ('" +
-                        deviceId +
-                        "')"));
-                existingTagNames.add(tag);
-            } catch (SQLException e) {
-                final String errorState = e.getSQLState();
-                if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    //Should never happen
-                    System.err.println("Error when preparing one of the commands for subscription of device " + deviceId
-                            + " to tags " + tagList.toString() +
-                            ". Aborting subscription.");
-                }
-            }
+            final Integer tagId = getOrCreateTagId(tag);
+            tagRows.add(new Object[]{tagId, deviceId});
         }
 
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                mConnection.setAutoCommit(Boolean.FALSE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when disabling autocommit for subscription of " +
-                        "device " +
-                        deviceId + " " +
-                        " to tags " + tagList.toString());
-            }
-            for (PreparedStatement cmd : tagRowInsertionCmds) {
-                try {
-                    cmd.execute();
-                } catch (SQLException e) {
-                    final String errorState = e.getSQLState();
-                    if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                        System.err.println("ERROR STATE: " + errorState);
-                        e.printStackTrace(System.err);
-                        try {
-                            mConnection.rollback();
-                            throw new IllegalStateException("Unexpected error during subscription of device " +
-                                    deviceId
-                                    + " " +
-                                    "to tags " + tagList.toString() + " in the database. Aborting.");
-                        } catch (SQLException e1) {
-                            e1.printStackTrace(System.err);
-                            //Should never happen
-                            throw new IllegalStateException("Unexpected error during subscription of device " +
-                                    deviceId
-                                    + " " +
-                                    "to tags " + tagList.toString() + " in the database. Aborting failed.");
-                        }
-                    }
-                }
-            }
-            try {
-                mConnection.commit();
-                mConnection.setAutoCommit(Boolean.TRUE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when restoring state during subscription of " +
-                        "device " +
-                        "" + deviceId
-                        + " " +
-                        "to tags " + tagList.toString() + " in the database.");
-            }
-        }
+        executeInTransaction(Collections.singletonList(connection -> executeBatch(connection, Operation
+                .ADD_SUBSCRIPTION, tagRows)), "subscription of device " + deviceId + " to tags " + tagList
+                .toString());
 
-        System.out.println("Added subscription of device " + deviceId + " to " + existingTagNames.toString() + " " +
+        System.out.println("Added subscription of device " + deviceId + " to " + tagList.toString() + " " +
                 "to " +
                 "database.");
 
         return Boolean.TRUE;
     }
 
+    /**
+     * Unsubscribes the device from all tags with a single batch.
+     */
+    @Override
     public Boolean removeSubscriptions(String deviceId, List<String> tagList) {
-        final List<PreparedStatement> tagRowRemovalCmds = new LinkedList<>();
-        final List<String> existingTagNames = new LinkedList<>();
+        final List<Object[]> tagRows = new ArrayList<>(tagList.size());
         for (String tag : tagList) {
+            final Integer tagId = findTagId(tag);
+            if (tagId != null) //Nobody is subscribed to a tag that doesn't exist
+                tagRows.add(new Object[]{tagId, deviceId});
+        }
+
+        executeInTransaction(Collections.singletonList(connection -> executeBatch(connection, Operation
+                .REMOVE_SUBSCRIPTION, tagRows)), "unsubscription of device " + deviceId + " from tags " + tagList
+                .toString());
+
+        System.out.println("Removed subscription of device " + deviceId + " from " + tagList.toString() + " in " +
+                "database.");
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Subscribes many devices at once in a single transaction. Rows are inserted in JDBC batches, and
+     * subscriptions that already exist are left untouched instead of failing the batch.
+     *
+     * @return <value>TRUE</value> if all subscriptions were stored, <value>FALSE</value> if none were.
+     */
+    @Override
+    public Boolean addSubscriptionsInBulk(List<CDeviceSubscription> subscriptions) {
+        final Map<String, List<String>> deviceIdsByTag = new LinkedHashMap<>();
+        for (CDeviceSubscription subscription : subscriptions)
+            for (String tag : subscription.getTags())
+                deviceIdsByTag.computeIfAbsent(tag, k -> new ArrayList<>()).add(subscription.getDeviceId());
+        final Map<String, Integer> tagIds = new HashMap<>();
+        for (String tag : deviceIdsByTag.keySet())
+            tagIds.put(tag, getOrCreateTagId(tag));
+
+        Integer addedRows = 0;
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
             try {
-                if (tableExists(tag)) {
-                    tagRowRemovalCmds.add(mConnection.prepareStatement("DELETE FROM " + tag + " WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + " IN" +
-                            " (SELECT " + TAG_TABLE_KEY_SUBSCRIBER + " FROM " + tag + " WHERE " +
-                            TAG_TABLE_KEY_SUBSCRIBER + "='" +
-                            deviceId + "')"));
-                    existingTagNames.add(tag);
+                connection.beginTransaction();
+                final List<Object[]> rows = new ArrayList<>();
+                for (Map.Entry<String, List<String>> tagAndDeviceIds : deviceIdsByTag.entrySet()) {
+                    final Integer tagId = tagIds.get(tagAndDeviceIds.getKey());
+                    for (String deviceId : tagAndDeviceIds.getValue())
+                        rows.add(new Object[]{tagId, deviceId});
                 }
+                addedRows = executeBatch(connection, Operation.ADD_SUBSCRIPTION, rows);
+                connection.commit();
             } catch (SQLException e) {
+                connection.onError(e);
+                forgetTagIdsIfUnknown(e);
                 final String errorState = e.getSQLState();
-                if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505") && tableExists(tag)) {
-                    System.err.println("ERROR STATE: " + errorState);
-                    e.printStackTrace(System.err);
-                    //Should never happen
-                    System.err.println("Error when preparing one of the commands for unsubscription of device " +
-                            deviceId
-                            + " to tags " + tagList.toString() +
-                            ". Aborting unsubscription.");
-                }
-                //If the tag is duplicated, no tag is added and therefore the operation fails
+                System.err.println("ERROR STATE: " + errorState);
+                e.printStackTrace(System.err);
+                System.err.println("Error during bulk subscription of " + subscriptions.size() + " devices. " +
+                        "Rolling back.");
+                return Boolean.FALSE; //Closing the connection rolls back
             }
         }
 
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                mConnection.setAutoCommit(Boolean.FALSE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when disabling autocommit for unsubscription of " +
-                        "device " +
-                        deviceId + " " +
-                        " from tags " + tagList.toString());
+        System.out.println("Added " + addedRows + " subscriptions of " + subscriptions.size() + " devices to " +
+                deviceIdsByTag.size() + " tags to database.");
+
+        return Boolean.TRUE;
+    }
+
+    /**
+     * Applies the changes in order in a single transaction, putting consecutive subscriptions (or
+     * unsubscriptions) in the same batch. Applying a change more than once has the same result as applying it once.
+     */
+    @Override
+    public Boolean applySubscriptionChanges(List<CSubscriptionChange> changes) {
+        final List<TransactionStep> steps = new ArrayList<>();
+        Operation rowsOperation = null;
+        List<Object[]> rows = new ArrayList<>();
+        for (CSubscriptionChange change : changes) {
+            final String deviceId = change.getDeviceId();
+            final Operation operation;
+            switch (change.getType()) {
+                case SUBSCRIBE:
+                    operation = Operation.ADD_SUBSCRIPTION;
+                    break;
+                case UNSUBSCRIBE:
+                    operation = Operation.REMOVE_SUBSCRIPTION;
+                    break;
+                default:
+                    operation = null;
             }
-            for (PreparedStatement cmd : tagRowRemovalCmds) {
-                try {
-                    cmd.execute();
-                } catch (SQLException e) {
-                    final String errorState = e.getSQLState();
-                    if (!errorState.contentEquals("X0Y32") && !errorState.contentEquals("23505")) {
-                        System.err.println("ERROR STATE: " + errorState);
-                        e.printStackTrace(System.err);
-                        try {
-                            mConnection.rollback();
-                            throw new IllegalStateException("Unexpected error during unsubscription of device " +
-                                    deviceId
-                                    + " " +
-                                    "to tags " + tagList.toString() + " in the database. Aborting.");
-                        } catch (SQLException e1) {
-                            e1.printStackTrace(System.err);
-                            //Should never happen
-                            throw new IllegalStateException("Unexpected error during unsubscription of device " +
-                                    deviceId
-                                    + " " +
-                                    "to tags " + tagList.toString() + " in the database. Aborting failed.");
-                        }
-                    }
-                }
+            if (rowsOperation != null && operation != rowsOperation) {
+                steps.add(batchStep(rowsOperation, rows));
+                rows = new ArrayList<>();
             }
-            try {
-                mConnection.commit();
-                mConnection.setAutoCommit(Boolean.TRUE);
-            } catch (SQLException e) {
-                e.printStackTrace(System.err);
-                //Should never happen
-                throw new IllegalStateException("Unexpected error when restoring state during unsubscription of " +
-                        "device " + deviceId
-                        + " " +
-                        "to tags " + tagList.toString() + " in the database. Aborting.");
+            rowsOperation = operation;
+            switch (change.getType()) {
+                case SUBSCRIBE:
+                    for (String tag : change.getTags()) {
+                        final Integer tagId = getOrCreateTagId(tag);
+                        rows.add(new Object[]{tagId, deviceId});
+                    }
+                    break;
+                case UNSUBSCRIBE:
+                    for (String tag : change.getTags()) {
+                        final Integer tagId = findTagId(tag);
+                        if (tagId != null) //Nobody is subscribed to a tag that doesn't exist
+                            rows.add(new Object[]{tagId, deviceId});
+                    }
+                    break;
+                case UPDATE_DEVICE:
+                    final String newDeviceId = change.getNewDeviceId();
+                    steps.add(connection -> execute(connection, Operation.REMOVE_DEVICE_CONFLICTS, deviceId,
+                            newDeviceId));
+                    steps.add(connection -> execute(connection, Operation.UPDATE_DEVICE, newDeviceId, deviceId));
+                    break;
+                case REMOVE_DEVICE:
+                    steps.add(connection -> execute(connection, Operation.REMOVE_DEVICE, deviceId));
+                    break;
+                case ADD_TAG:
+                    for (String tag : change.getTags())
+                        getOrCreateTagId(tag);
+                    break;
             }
         }
+        if (rowsOperation != null)
+            steps.add(batchStep(rowsOperation, rows));
 
-        System.out.println("Removed subscription of device " + deviceId + " from " + existingTagNames.toString() + " in " +
-                "database.");
+        executeInTransaction(steps, "application of " + changes.size() + " subscription changes");
+
+        System.out.println("Applied " + changes.size() + " subscription changes to database.");
 
         return Boolean.TRUE;
     }
 
-    public List<String> getTagsNow() {
-        PreparedStatement tagSelectionStatement;
-        try {
-            tagSelectionStatement = mConnection.prepareStatement("SELECT " + TAGS_TABLE_KEY_TAG_NAME + " FROM " +
-                    TAGS_TABLE_NAME);
-        } catch (SQLException e) {
-            final String errorState = e.getSQLState();
-            System.err.println("ERROR STATE: " + errorState);
-            e.printStackTrace(System.err);
-            //Should never happen
-            System.err.println("Error when preparing the command for retrieval of the full set of tags." +
-                    " Returning empty collection of tags.");
-            return Collections.<String>emptyList();
-        }
+    private static TransactionStep batchStep(Operation operation, List<Object[]> parameterRows) {
+        return connection -> executeBatch(connection, operation, parameterRows);
+    }
+
+    private static Integer sumUpdateCounts(int[] updateCounts) {
+        Integer ret = 0;
+        for (int count : updateCounts)
+            if (count > 0)
+                ret += count;
+        return ret;
+    }
 
+    /**
+     * @return {@link List} The names of all tags, in order of creation.
+     */
+    @Override
+    public List<String> getTagsNow() {
         final List<String> ret = new LinkedList<>();
 
-        synchronized (DB_ACCESS_LOCK) {
-            try {
-                tagSelectionStatement.execute();
-                ResultSet resultSet = tagSelectionStatement.getResultSet();
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+            try (ResultSet resultSet = connection.prepare(Operation.GET_TAGS).executeQuery()) {
                 while (resultSet.next()) {
-                    ret.add(resultSet.getString(TAGS_TABLE_KEY_TAG_NAME).trim());
+                    ret.add(resultSet.getString(2));
+                    mTagIdCatalog.put(resultSet.getString(2), resultSet.getInt(1));
                 }
             } catch (SQLException e) {
+                connection.onError(e);
                 final String errorState = e.getSQLState();
                 System.err.println("ERROR STATE: " + errorState);
                 e.printStackTrace(System.err);
                 //Should never happen
-                System.err.println("Error when preparing the command for retrieval of the full set of tags." +
-                        " Returning empty collection of tags.");
+                System.err.println("Error when retrieving the full set of tags. Returning empty collection of tags.");
                 return Collections.<String>emptyList();
             }
 
@@ -530,29 +518,177 @@ public final class DBDAOSingleton {
         }
     }
 
-    private Boolean tableExists(String tableName) {
+    private static Integer execute(DBConnectionPool.PooledConnection connection, Operation operation, Object...
+            parameters) throws SQLException {
+        final PreparedStatement statement = connection.prepare(operation);
+        for (Integer i = 0; i < parameters.length; i++)
+            statement.setObject(i + 1, parameters[i]);
+        return statement.executeUpdate();
+    }
+
+    /**
+     * Runs the operation once per row of parameters, sending the rows to the database in batches. A row that fails
+     * because what it inserts is already there is skipped and the batch goes on with the next one, so the rows
+     * before and after it are kept.
+     *
+     * @return {@link Integer} The amount of rows changed.
+     */
+    private static Integer executeBatch(DBConnectionPool.PooledConnection connection, Operation operation,
+                                        List<Object[]> parameterRows) throws SQLException {
+        final PreparedStatement statement = connection.prepare(operation);
+        Integer ret = 0;
+        for (Integer start = 0; start < parameterRows.size(); ) {
+            final Integer end = Math.min(start + BULK_BATCH_SIZE, parameterRows.size());
+            for (Object[] parameters : parameterRows.subList(start, end)) {
+                for (Integer i = 0; i < parameters.length; i++)
+                    statement.setObject(i + 1, parameters[i]);
+                statement.addBatch();
+            }
+            try {
+                ret += sumUpdateCounts(statement.executeBatch());
+                start = end;
+            } catch (BatchUpdateException e) {
+                if (!"23505".equals(e.getSQLState()))
+                    throw e;
+                //The row is already there, carry on with those after it
+                statement.clearBatch();
+                ret += sumUpdateCounts(e.getUpdateCounts());
+                start += e.getUpdateCounts().length + 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Runs the steps in a single transaction on a connection of its own. Steps that fail because what they
+     * insert is already there are skipped, any other failure rolls the whole transaction back. Transactions that
+     * lose a deadlock or time out waiting for a lock are tried again, and so are those whose connection can't even
+     * roll back, on a new connection.
+     */
+    private void executeInTransaction(List<TransactionStep> steps, String operationDescription) {
+        for (Integer attempt = 1; ; attempt++) {
+            try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+                try {
+                    connection.beginTransaction();
+                    for (TransactionStep step : steps) {
+                        try {
+                            step.execute(connection);
+                        } catch (SQLException e) {
+                            if (!e.getSQLState().contentEquals("23505"))
+                                throw e;
+                            //If it is already there it's okay, just carry on
+                        }
+                    }
+                    connection.commit();
+                    return;
+                } catch (SQLException e) {
+                    connection.onError(e);
+                    forgetTagIdsIfUnknown(e);
+                    final String errorState = e.getSQLState();
+                    Boolean retryable = TRANSIENT_ERROR_STATES.contains(errorState);
+                    try {
+                        connection.rollback();
+                    } catch (SQLException e1) {
+                        connection.onError(e1);
+                        connection.discard(); //Released when leaving the try, replaced by the pool
+                        e1.printStackTrace(System.err);
+                        retryable = Boolean.TRUE;
+                    }
+                    if (retryable && attempt < MAX_TRANSACTION_ATTEMPTS) {
+                        System.err.println("Error during " + operationDescription + " (" + errorState + "). " +
+                                "Retrying...");
+                        continue;
+                    }
+                    System.err.println("ERROR STATE: " + errorState);
+                    e.printStackTrace(System.err);
+                    throw new IllegalStateException("Unexpected error during " + operationDescription + " in " +
+                            "database. Aborting.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Empties the tag id catalog if the statement failed because a tag id it used doesn't exist, as the catalog
+     * must be wrong then.
+     */
+    private void forgetTagIdsIfUnknown(SQLException e) {
+        if (UNKNOWN_TAG_ID_ERROR_STATE.equals(e.getSQLState()))
+            mTagIdCatalog.clear();
+    }
+
+    /**
+     * @return <value>TRUE</value> if a table of the per-tag layout of previous versions exists,
+     * <value>FALSE</value> otherwise.
+     */
+    private Boolean legacyTableExists(String tableName) {
         DatabaseMetaData metadata;
 
-        try {
-            metadata = mConnection.getMetaData();
-            ResultSet tableNames = metadata.getTables(null, null, null, new String[]{"TABLE"});
-            while (tableNames.next()) {
-                if (tableNames.getString("TABLE_NAME").toLowerCase(Locale.ENGLISH).contentEquals(tableName
-                        .toLowerCase(Locale.ENGLISH)
-                        .toLowerCase(Locale.ENGLISH))) {
-                    return Boolean.TRUE;
+        try (DBConnectionPool.PooledConnection connection = mConnectionPool.acquire()) {
+            try {
+                metadata = connection.getConnection().getMetaData();
+                try (ResultSet tableNames = metadata.getTables(null, null, null, new String[]{"TABLE"})) {
+                    while (tableNames.next()) {
+                        if (!tableNames.getString("TABLE_SCHEM").contentEquals(SCHEMA_NAME) && tableNames.getString
+                                ("TABLE_NAME").toLowerCase(Locale.ENGLISH).contentEquals(tableName.toLowerCase(Locale
+                                .ENGLISH))) {
+                            return Boolean.TRUE;
+                        }
+                    }
                 }
+            } catch (SQLException e) {
+                final String errorCode = e.getSQLState();
+                e.printStackTrace(System.err);
+                System.err.println("ERROR STATE: " + errorCode);
+                //Should never happen
+                throw new IllegalStateException("Unexpected error when checking for existence of table " + tableName +
+                        "." + " " + "Aborting.");
             }
-        } catch (SQLException e) {
-            final String errorCode = e.getSQLState();
-            e.printStackTrace(System.err);
-            System.err.println("ERROR STATE: " + errorCode);
-            //Should never happen
-            throw new IllegalStateException("Unexpected error when checking for existence of table " + tableName + "." +
-                    " " +
-                    "Aborting.");
         }
 
         return Boolean.FALSE;
     }
+
+    /**
+     * Statements run by the DAO. Values are always bound as parameters, so each of them is compiled once per
+     * pooled connection and then reused.
+     */
+    enum Operation {
+        ADD_TAG("INSERT INTO " + TAGS_TABLE_NAME + " (" + TAGS_TABLE_KEY_TAG_NAME + ") VALUES (?)"),
+        ADD_TAG_IF_ABSENT("INSERT INTO " + TAGS_TABLE_NAME + " (" + TAGS_TABLE_KEY_TAG_NAME + ") SELECT CAST(? AS " +
+                "VARCHAR(254)) FROM SYSIBM.SYSDUMMY1 WHERE NOT EXISTS (SELECT 1 FROM " + TAGS_TABLE_NAME + " WHERE " +
+                TAGS_TABLE_KEY_TAG_NAME + " = ?)"),
+        GET_TAG_ID("SELECT " + TAGS_TABLE_KEY_TAG_ID + " FROM " + TAGS_TABLE_NAME + " WHERE " +
+                TAGS_TABLE_KEY_TAG_NAME + " = ?"),
+        GET_TAGS("SELECT " + TAGS_TABLE_KEY_TAG_ID + ", " + TAGS_TABLE_KEY_TAG_NAME + " FROM " + TAGS_TABLE_NAME +
+                " ORDER BY " + TAGS_TABLE_KEY_TAG_ID),
+        GET_SUBSCRIBERS("SELECT " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " FROM " + SUBSCRIPTIONS_TABLE_NAME + " " +
+                "WHERE " + SUBSCRIPTIONS_TABLE_KEY_TAG_ID + " = ?"),
+        ADD_SUBSCRIPTION("INSERT INTO " + SUBSCRIPTIONS_TABLE_NAME + " (" + SUBSCRIPTIONS_TABLE_KEY_TAG_ID + ", " +
+                SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + ") VALUES (?, ?)"),
+        REMOVE_SUBSCRIPTION("DELETE FROM " + SUBSCRIPTIONS_TABLE_NAME + " WHERE " + SUBSCRIPTIONS_TABLE_KEY_TAG_ID +
+                " = ? AND " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " = ?"),
+        REMOVE_DEVICE_CONFLICTS("DELETE FROM " + SUBSCRIPTIONS_TABLE_NAME + " WHERE " +
+                SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " = ? AND " + SUBSCRIPTIONS_TABLE_KEY_TAG_ID + " IN (SELECT " +
+                SUBSCRIPTIONS_TABLE_KEY_TAG_ID + " FROM " + SUBSCRIPTIONS_TABLE_NAME + " WHERE " +
+                SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " = ?)"),
+        UPDATE_DEVICE("UPDATE " + SUBSCRIPTIONS_TABLE_NAME + " SET " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " = ? " +
+                "WHERE " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID + " = ?"),
+        REMOVE_DEVICE("DELETE FROM " + SUBSCRIPTIONS_TABLE_NAME + " WHERE " + SUBSCRIPTIONS_TABLE_KEY_DEVICE_ID +
+                " = ?");
+
+        private final String mSql;
+
+        Operation(String _sql) {
+            mSql = _sql;
+        }
+
+        String getSql() {
+            return mSql;
+        }
+    }
+
+    private interface TransactionStep {
+        void execute(DBConnectionPool.PooledConnection connection) throws SQLException;
+    }
 }
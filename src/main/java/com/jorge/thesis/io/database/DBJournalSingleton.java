@@ -0,0 +1,384 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+import com.jorge.thesis.io.store.SubscriptionStore;
+import com.jorge.thesis.io.store.SubscriptionStoreSingleton;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind journal of subscription changes, enabled through the resource /subscription_write_behind. Changes
+ * are appended to a memory-mapped file and acknowledged once it is forced to disk, instead of once they reach the
+ * subscription store. A background applier moves them to the store in large transactions.
+ * <p>
+ * Appenders that arrive while the file is being forced wait for that force to end and then share a single one
+ * (group commit). Entries carry the generation of the journal and a checksum, so that the end of the valid entries
+ * can be found after a crash. When the applier catches up the journal starts over with a new generation.
+ * <p>
+ * The offset of the first entry not applied yet is forced to disk once the entries before it are in the store.
+ * Entries after it may have reached the store too if the server stopped in between, and are applied again, so
+ * they must be of the types that give the same result when that happens (see
+ * {@link SubscriptionStore#applySubscriptionChanges(List)}).
+ * <p>
+ * Entries that were not applied yet are applied on startup by {@link #replay()}, also if write-behind has been
+ * disabled since.
+ */
+public final class DBJournalSingleton {
+
+    private static final Object LOCK = new Object();
+    private static final String JOURNAL_FILE_NAME = "subscriptions.journal";
+    private static final Integer JOURNAL_SIZE = 64 << 20;
+    private static final Integer HEADER_SIZE = 8; //Generation, then offset of the first entry not applied yet
+    private static final Integer ENTRY_HEADER_SIZE = 12; //Payload length, generation, payload checksum
+    private static final Integer RESTART_THRESHOLD = JOURNAL_SIZE / 4;
+    private static final Integer MAX_CHANGES_PER_TRANSACTION = 5000;
+    private static final Long APPLY_RETRY_MILLIS = 1000L;
+    private static final Long APPEND_TIMEOUT_SECONDS = 30L;
+    private static volatile DBJournalSingleton mInstance;
+    private final Boolean mEnabled;
+    private final Path mJournalPath;
+    private final SubscriptionStore mStore;
+    private final MappedByteBuffer mJournal; //Null if there is neither write-behind nor anything to replay
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mEntriesWritten = mLock.newCondition(), mSpaceFreed = mLock.newCondition();
+    private final Object mForceLock = new Object();
+    private volatile Long mDurablePosition = 0L;
+    private Integer mGeneration, mAppliedOffset, mWriteOffset; //Guarded by mLock
+    private Boolean mWaitingForSpace = Boolean.FALSE; //Guarded by mLock
+
+    private DBJournalSingleton() {
+        this(readEnabled(), readJournalPath(), SubscriptionStoreSingleton.getInstance());
+    }
+
+    /**
+     * Works on the journal at the path and applies it to the store instead of those of the resources, as tests and
+     * benchmarks do.
+     */
+    DBJournalSingleton(Boolean _enabled, Path _journalPath, SubscriptionStore _store) {
+        mEnabled = _enabled;
+        mJournalPath = _journalPath;
+        mStore = _store;
+
+        if (!mEnabled && !Files.exists(mJournalPath)) {
+            mJournal = null;
+            return;
+        }
+        try {
+            if (mJournalPath.getParent() != null)
+                Files.createDirectories(mJournalPath.getParent());
+            try (FileChannel channel = FileChannel.open(mJournalPath, StandardOpenOption.CREATE, StandardOpenOption
+                    .READ, StandardOpenOption.WRITE)) {
+                mJournal = channel.map(FileChannel.MapMode.READ_WRITE, 0, JOURNAL_SIZE);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Unable to open the subscription journal " + mJournalPath
+                    .toAbsolutePath() + ". Aborting.");
+        }
+        mGeneration = mJournal.getInt(0);
+        mAppliedOffset = mJournal.getInt(4);
+        if (mGeneration == 0) { //New journal
+            mGeneration = 1;
+            mAppliedOffset = HEADER_SIZE;
+            writeHeader();
+        }
+        mWriteOffset = mAppliedOffset;
+        Integer nextOffset;
+        while ((nextOffset = readEntry(mWriteOffset, null)) != null)
+            mWriteOffset = nextOffset;
+    }
+
+    private static Boolean readEnabled() {
+        try {
+            return Boolean.valueOf(IOUtils.toString(DBJournalSingleton.class.getResourceAsStream
+                    ("/subscription_write_behind")).trim());
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resource /subscription_write_behind not properly loaded.");
+        }
+    }
+
+    private static Path readJournalPath() {
+        try {
+            return Paths.get(IOUtils.toString(DBJournalSingleton.class.getResourceAsStream
+                    ("/configuration_folder_name")), JOURNAL_FILE_NAME);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resource /configuration_folder_name not properly loaded.");
+        }
+    }
+
+    public static DBJournalSingleton getInstance() {
+        DBJournalSingleton ret = mInstance;
+        if (ret == null) {
+            synchronized (LOCK) {
+                ret = mInstance;
+                if (ret == null) {
+                    ret = new DBJournalSingleton();
+                    mInstance = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return <value>TRUE</value> if subscription changes must be appended to the journal instead of written to
+     * the store, <value>FALSE</value> otherwise.
+     */
+    public Boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Applies the entries left by the previous run to the store and, if write-behind is enabled, starts the
+     * applier. Must be called once, after the store environment is created and before anything is read from it.
+     *
+     * @return {@link Integer} The amount of entries applied.
+     */
+    public Integer replay() {
+        if (mJournal == null)
+            return 0;
+
+        Integer ret = 0;
+        mLock.lock();
+        try {
+            while (!mAppliedOffset.equals(mWriteOffset))
+                ret += applyPendingEntries();
+            restart();
+        } finally {
+            mLock.unlock();
+        }
+
+        if (mEnabled) {
+            final Thread applier = new Thread(new JournalApplier(), "subscription-journal-applier");
+            applier.setDaemon(Boolean.TRUE);
+            applier.start();
+        } else {
+            try {
+                Files.delete(mJournalPath);
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+                //The journal is empty, so it would be harmless to keep it
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Appends the changes and waits until they are on disk. If the journal is full, waits up to
+     * {@link #APPEND_TIMEOUT_SECONDS} for the applier to make room; the changes are appended all at once or not at
+     * all.
+     *
+     * @param changes {@link List} Changes of any type but {@link CSubscriptionChange.Type#UPDATE_DEVICE}, which
+     *                can't be applied again safely.
+     * @return <value>TRUE</value> once the changes are durable, <value>FALSE</value> if there was no room for them
+     * in time.
+     */
+    public Boolean append(List<CSubscriptionChange> changes) {
+        final List<byte[]> payloads = new ArrayList<>(changes.size());
+        Integer size = 0;
+        for (CSubscriptionChange change : changes) {
+            if (change.getType() == CSubscriptionChange.Type.UPDATE_DEVICE)
+                throw new IllegalArgumentException("Registration id updates can't be journaled, journal the " +
+                        "subscriptions of the new id and the removal of the old one instead.");
+            final byte[] payload = change.encode();
+            payloads.add(payload);
+            size += ENTRY_HEADER_SIZE + payload.length;
+        }
+        if (size > JOURNAL_SIZE - HEADER_SIZE)
+            throw new IllegalArgumentException("Subscription changes too large for the journal.");
+
+        final Long position;
+        mLock.lock();
+        try {
+            Long remainingNanos = TimeUnit.SECONDS.toNanos(APPEND_TIMEOUT_SECONDS);
+            while (mWriteOffset + size > JOURNAL_SIZE) {
+                if (remainingNanos <= 0) {
+                    System.err.println("No room in the subscription journal for " + changes.size() + " changes " +
+                            "after " + APPEND_TIMEOUT_SECONDS + " seconds. Rejecting them.");
+                    return Boolean.FALSE;
+                }
+                //The applier starts the journal over as soon as it catches up
+                mWaitingForSpace = Boolean.TRUE;
+                mEntriesWritten.signal();
+                try {
+                    remainingNanos = mSpaceFreed.awaitNanos(remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.err.println("Interrupted while waiting for room in the subscription journal. Rejecting " +
+                            changes.size() + " changes.");
+                    return Boolean.FALSE;
+                }
+            }
+            for (byte[] payload : payloads)
+                writeEntry(payload);
+            mEntriesWritten.signal();
+            position = getPosition();
+        } finally {
+            mLock.unlock();
+        }
+
+        force(position);
+        return Boolean.TRUE;
+    }
+
+    /**
+     * @return {@link Long} A position that only grows, even if the journal starts over.
+     */
+    private Long getPosition() {
+        return ((long) mGeneration << 32) | mWriteOffset;
+    }
+
+    private void force(Long position) {
+        synchronized (mForceLock) {
+            if (mDurablePosition >= position)
+                return; //Forced along with the entries of somebody else
+            final Long writtenPosition;
+            mLock.lock();
+            try {
+                writtenPosition = getPosition();
+            } finally {
+                mLock.unlock();
+            }
+            mJournal.force();
+            mDurablePosition = writtenPosition;
+        }
+    }
+
+    private void writeEntry(byte[] payload) {
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        final ByteBuffer journal = mJournal.duplicate();
+        journal.position(mWriteOffset);
+        journal.putInt(payload.length).putInt(mGeneration).putInt((int) checksum.getValue()).put(payload);
+        mWriteOffset = journal.position();
+    }
+
+    /**
+     * @return {@link Integer} The offset of the next entry, or <value>null</value> if there is no valid entry at
+     * this offset.
+     */
+    private Integer readEntry(Integer offset, List<CSubscriptionChange> changes) {
+        if (offset + ENTRY_HEADER_SIZE > JOURNAL_SIZE)
+            return null;
+        final Integer length = mJournal.getInt(offset);
+        if (length <= 0 || offset + ENTRY_HEADER_SIZE + length > JOURNAL_SIZE || mJournal.getInt(offset + 4) !=
+                mGeneration)
+            return null;
+        final byte[] payload = new byte[length];
+        final ByteBuffer journal = mJournal.duplicate();
+        journal.position(offset + ENTRY_HEADER_SIZE);
+        journal.get(payload);
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload);
+        if ((int) checksum.getValue() != mJournal.getInt(offset + 8))
+            return null; //Torn write of an entry that was never acknowledged
+        if (changes != null)
+            changes.add(CSubscriptionChange.decode(payload));
+        return offset + ENTRY_HEADER_SIZE + length;
+    }
+
+    private void writeHeader() {
+        mJournal.putInt(0, mGeneration);
+        mJournal.putInt(4, mAppliedOffset);
+    }
+
+    /**
+     * Only called by whoever applies the entries, so it needs no lock: the offset is written by nobody else, and
+     * appenders never write the header.
+     */
+    private void forceAppliedOffset(Integer appliedOffset) {
+        mJournal.putInt(4, appliedOffset);
+        mJournal.force();
+    }
+
+    /**
+     * Starts the journal over with a new generation, so that the entries of the previous one are no longer valid.
+     * Must be called with the lock held, once everything is applied.
+     */
+    private void restart() {
+        mGeneration++;
+        mAppliedOffset = HEADER_SIZE;
+        mWriteOffset = HEADER_SIZE;
+        writeHeader();
+        mJournal.force(); //Before anything is appended, or a crash could replay the previous generation
+        mWaitingForSpace = Boolean.FALSE;
+        mSpaceFreed.signalAll();
+    }
+
+    /**
+     * Applies up to {@link #MAX_CHANGES_PER_TRANSACTION} entries in a single transaction, and forces the offset
+     * past them to disk before counting them as applied. Must be called with the lock held; the lock is released
+     * while the store and the offset are written, and held again when this returns.
+     *
+     * @return {@link Integer} The amount of entries applied.
+     */
+    private Integer applyPendingEntries() {
+        final List<CSubscriptionChange> changes = new ArrayList<>();
+        Integer offset = mAppliedOffset;
+        while (!offset.equals(mWriteOffset) && changes.size() < MAX_CHANGES_PER_TRANSACTION)
+            offset = readEntry(offset, changes);
+
+        mLock.unlock();
+        try {
+            if (!mStore.applySubscriptionChanges(changes))
+                throw new IllegalStateException("The store rejected " + changes.size() + " subscription changes.");
+            forceAppliedOffset(offset);
+        } finally {
+            mLock.lock();
+        }
+        mAppliedOffset = offset;
+        return changes.size();
+    }
+
+    private class JournalApplier implements Runnable {
+
+        @Override
+        public void run() {
+            mLock.lock();
+            try {
+                while (true) {
+                    if (mAppliedOffset.equals(mWriteOffset)) {
+                        if (mWaitingForSpace || mWriteOffset > RESTART_THRESHOLD)
+                            restart();
+                        mEntriesWritten.awaitUninterruptibly();
+                        continue;
+                    }
+                    try {
+                        applyPendingEntries();
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(System.err);
+                        System.err.println("Unable to apply the subscription journal to the store. Retrying in " +
+                                APPLY_RETRY_MILLIS + " ms.");
+                        mLock.unlock();
+                        try {
+                            Thread.sleep(APPLY_RETRY_MILLIS);
+                        } catch (InterruptedException e1) {
+                            e1.printStackTrace(System.err);
+                            //Will never happen
+                        } finally {
+                            mLock.lock();
+                        }
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.jorge.thesis.io.net;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * What was received of the answer to a request: the status code, the headers and the body. If the connection broke
+ * after the status line, the body is only what arrived before it did.
+ */
+public final class CHTTPResponse {
+
+    private final Integer mCode;
+    private final Map<String, String> mHeaders;
+    private final byte[] mBody;
+
+    /**
+     * @param _headers {@link Map} Headers by name, which must be looked up ignoring case.
+     */
+    CHTTPResponse(Integer _code, Map<String, String> _headers, byte[] _body) {
+        mCode = _code;
+        mHeaders = _headers;
+        mBody = _body;
+    }
+
+    public Integer getCode() {
+        return mCode;
+    }
+
+    /**
+     * @return {@link String} The value of the header, <value>null</value> if there is none with this name.
+     */
+    public String getHeader(String name) {
+        return mHeaders.get(name);
+    }
+
+    /**
+     * @return {@link Reader} The body, read as UTF-8.
+     */
+    public Reader getBodyReader() {
+        return new InputStreamReader(new ByteArrayInputStream(mBody), StandardCharsets.UTF_8);
+    }
+}
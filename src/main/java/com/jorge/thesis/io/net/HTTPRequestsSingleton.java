@@ -1,20 +1,78 @@
 package com.jorge.thesis.io.net;
 
-import com.squareup.okhttp.OkHttpClient;
-import com.squareup.okhttp.Request;
-import com.squareup.okhttp.Response;
+import com.jorge.thesis.util.MetricsSingleton;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpExchange;
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 public final class HTTPRequestsSingleton {
 
     private static final Object LOCK = new Object();
     public static final Integer IN_PLACE_ERROR_STATUS_CODE = 666;
     private static volatile HTTPRequestsSingleton mInstance;
-    private final OkHttpClient mClient;
+    private final HttpClient mClient;
+    private final AtomicInteger mInFlight = new AtomicInteger();
 
+    /**
+     * Configures the client from the resource /http_client_properties: how many threads it has, how many requests
+     * may be in flight at once to the same host, for how long idle connections are kept alive, and the connect and
+     * request timeouts.
+     * <p>
+     * The client is non-blocking: a request in flight holds a connection, but no thread. Threads are only taken to
+     * read and write what the connections are ready for, and to run the completion callbacks, so a few of them serve
+     * thousands of requests in flight.
+     */
     private HTTPRequestsSingleton() {
-        mClient = new OkHttpClient();
+        final Properties properties = new Properties();
+        final Integer threads, maxRequestsPerHost, connectTimeoutMillis;
+        final Long keepAliveMillis, requestTimeoutMillis;
+        try (InputStream propertiesStream = HTTPRequestsSingleton.class.getResourceAsStream
+                ("/http_client_properties")) {
+            properties.load(propertiesStream);
+            threads = Integer.valueOf(properties.getProperty("threads").trim());
+            maxRequestsPerHost = Integer.valueOf(properties.getProperty("maxRequestsPerHost").trim());
+            keepAliveMillis = Long.valueOf(properties.getProperty("keepAliveMillis").trim());
+            connectTimeoutMillis = Integer.valueOf(properties.getProperty("connectTimeoutMillis").trim());
+            requestTimeoutMillis = Long.valueOf(properties.getProperty("requestTimeoutMillis").trim());
+        } catch (IOException | NullPointerException | NumberFormatException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resource /http_client_properties not properly loaded.");
+        }
+
+        final QueuedThreadPool threadPool = new QueuedThreadPool(threads);
+        threadPool.setName("http-client");
+        threadPool.setDaemon(Boolean.TRUE);
+        mClient = new HttpClient();
+        mClient.setConnectorType(HttpClient.CONNECTOR_SELECT_CHANNEL);
+        mClient.setConnectBlocking(Boolean.FALSE); //Or every connection being opened would hold a thread
+        mClient.setThreadPool(threadPool);
+        mClient.setMaxConnectionsPerAddress(maxRequestsPerHost); //A connection carries one request at a time
+        mClient.setIdleTimeout(keepAliveMillis);
+        mClient.setConnectTimeout(connectTimeoutMillis);
+        mClient.setTimeout(requestTimeoutMillis);
+        try {
+            mClient.start();
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("HTTP client not started. Aborting.");
+        }
+
+        final MetricsSingleton metrics = MetricsSingleton.getInstance();
+        metrics.gauge("http.in_flight", mInFlight::get);
+        metrics.gauge("http.threads", threadPool::getThreads);
+        metrics.gauge("http.idle_threads", threadPool::getIdleThreads);
     }
 
     public static HTTPRequestsSingleton getInstance() {
@@ -31,12 +89,108 @@ public final class HTTPRequestsSingleton {
         return ret;
     }
 
-    public Response performRequest(Request request) {
+    /**
+     * @return {@link Integer} Most requests that can be in flight at once to the same host.
+     */
+    public Integer getMaxRequestsPerHost() {
+        return mClient.getMaxConnectionsPerAddress();
+    }
+
+    /**
+     * Sends a POST request without waiting for the answer. Requests beyond the limit of the host wait in the client
+     * for a connection.
+     *
+     * @param url          {@link String} Where to send it.
+     * @param headers      {@link Map} Headers of the request.
+     * @param body         {@link byte[]} Body of the request. It must not change until the request completes.
+     * @param onCompletion {@link Consumer} Receives the response, or one with {@link #IN_PLACE_ERROR_STATUS_CODE}
+     *                     if not even its status line could be read. It runs on a thread of the client, so it must
+     *                     not take long.
+     */
+    public void performPostAsync(String url, Map<String, String> headers, byte[] body, Consumer<CHTTPResponse>
+            onCompletion) {
+        final CCallbackExchange exchange = new CCallbackExchange(onCompletion);
+        exchange.setMethod("POST");
+        exchange.setURL(url);
+        for (Map.Entry<String, String> header : headers.entrySet())
+            exchange.setRequestHeader(header.getKey(), header.getValue());
+        exchange.setRequestContent(new ByteArrayBuffer(body));
+        mInFlight.incrementAndGet();
         try {
-            return mClient.newCall(request).execute();
+            mClient.send(exchange);
         } catch (IOException e) {
-            e.printStackTrace(System.err);
-            return new Response.Builder().code(IN_PLACE_ERROR_STATUS_CODE).build();
+            exchange.onException(e);
+        }
+    }
+
+    /**
+     * Collects the answer as it arrives and hands it over once, however the exchange ends. A timeout can end it from
+     * another thread while the answer is still arriving, so what has arrived is guarded by the exchange.
+     */
+    private final class CCallbackExchange extends HttpExchange {
+        private final Consumer<CHTTPResponse> mOnCompletion;
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+        private final Map<String, String> mResponseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final ByteArrayOutputStream mResponseBody = new ByteArrayOutputStream();
+        private Integer mResponseCode = IN_PLACE_ERROR_STATUS_CODE; //Until the status line is read
+
+        private CCallbackExchange(Consumer<CHTTPResponse> _onCompletion) {
+            mOnCompletion = _onCompletion;
+        }
+
+        @Override
+        protected synchronized void onResponseStatus(Buffer version, int status, Buffer reason) {
+            mResponseCode = status;
+        }
+
+        @Override
+        protected synchronized void onResponseHeader(Buffer name, Buffer value) {
+            mResponseHeaders.put(name.toString(), value.toString());
+        }
+
+        @Override
+        protected synchronized void onResponseContent(Buffer content) throws IOException {
+            content.writeTo(mResponseBody);
+        }
+
+        @Override
+        protected void onResponseComplete() {
+            complete();
+        }
+
+        @Override
+        protected void onConnectionFailed(Throwable x) {
+            x.printStackTrace(System.err);
+            complete();
+        }
+
+        @Override
+        protected void onException(Throwable x) {
+            x.printStackTrace(System.err);
+            complete();
+        }
+
+        @Override
+        protected void onExpire() {
+            System.err.println("Request to " + getAddress() + " timed out.");
+            complete();
+        }
+
+        /**
+         * A response that breaks after its status line is handed over as it is, so that whatever arrived of it can
+         * still be used.
+         */
+        private void complete() {
+            if (!mCompleted.compareAndSet(Boolean.FALSE, Boolean.TRUE))
+                return;
+            mInFlight.decrementAndGet();
+            final CHTTPResponse response;
+            synchronized (this) {
+                final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                headers.putAll(mResponseHeaders);
+                response = new CHTTPResponse(mResponseCode, headers, mResponseBody.toByteArray());
+            }
+            mOnCompletion.accept(response);
         }
     }
 }
@@ -0,0 +1,133 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Keeps everything in concurrent hash sets, one per tag. Nothing survives a restart.
+ */
+final class InMemorySubscriptionStore implements SubscriptionStore {
+
+    private final ConcurrentMap<String, Set<String>> mSubscribersByTag = new ConcurrentHashMap<>();
+    private final List<String> mTags = new CopyOnWriteArrayList<>(); //In order of creation
+
+    @Override
+    public void createEnvironment() {
+        //Nothing to prepare
+    }
+
+    @Override
+    public Boolean addTag(String tagName) {
+        getSubscribers(tagName);
+        return Boolean.TRUE;
+    }
+
+    private Set<String> getSubscribers(String tagName) {
+        Set<String> ret = mSubscribersByTag.get(tagName);
+        if (ret == null) {
+            synchronized (mTags) {
+                ret = mSubscribersByTag.get(tagName);
+                if (ret == null) {
+                    ret = ConcurrentHashMap.newKeySet();
+                    mSubscribersByTag.put(tagName, ret);
+                    mTags.add(tagName);
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public List<String> getTagsNow() {
+        return new ArrayList<>(mTags);
+    }
+
+    Boolean hasTag(String tagName) {
+        return mSubscribersByTag.containsKey(tagName);
+    }
+
+    @Override
+    public Boolean forEachSubscribedRegistrationId(CEntityTagManager.CEntityTag tag, Consumer<String> consumer) {
+        forEachSubscribedRegistrationId(tag.getName(), consumer);
+        return Boolean.TRUE;
+    }
+
+    void forEachSubscribedRegistrationId(String tagName, Consumer<String> consumer) {
+        final Set<String> subscribers = mSubscribersByTag.get(tagName);
+        if (subscribers != null)
+            subscribers.forEach(consumer);
+    }
+
+    @Override
+    public Boolean addSubscriptions(String deviceId, List<String> tagList) {
+        for (String tag : tagList)
+            getSubscribers(tag).add(deviceId);
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Boolean removeSubscriptions(String deviceId, List<String> tagList) {
+        for (String tag : tagList) {
+            final Set<String> subscribers = mSubscribersByTag.get(tag);
+            if (subscribers != null)
+                subscribers.remove(deviceId);
+        }
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Boolean addSubscriptionsInBulk(List<CDeviceSubscription> subscriptions) {
+        for (CDeviceSubscription subscription : subscriptions)
+            addSubscriptions(subscription.getDeviceId(), subscription.getTags());
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Boolean updateRegistrationIdOnAllTags(String oldId, String newId) {
+        for (Set<String> subscribers : mSubscribersByTag.values())
+            if (subscribers.remove(oldId))
+                subscribers.add(newId);
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Boolean removeRegistrationIdFromAllTags(String deviceId) {
+        for (Set<String> subscribers : mSubscribersByTag.values())
+            subscribers.remove(deviceId);
+        return Boolean.TRUE;
+    }
+
+    @Override
+    public Boolean applySubscriptionChanges(List<CSubscriptionChange> changes) {
+        for (CSubscriptionChange change : changes) {
+            switch (change.getType()) {
+                case ADD_TAG:
+                    for (String tag : change.getTags())
+                        addTag(tag);
+                    break;
+                case SUBSCRIBE:
+                    addSubscriptions(change.getDeviceId(), change.getTags());
+                    break;
+                case UNSUBSCRIBE:
+                    removeSubscriptions(change.getDeviceId(), change.getTags());
+                    break;
+                case UPDATE_DEVICE:
+                    updateRegistrationIdOnAllTags(change.getDeviceId(), change.getNewDeviceId());
+                    break;
+                case REMOVE_DEVICE:
+                    removeRegistrationIdFromAllTags(change.getDeviceId());
+                    break;
+            }
+        }
+        return Boolean.TRUE;
+    }
+}
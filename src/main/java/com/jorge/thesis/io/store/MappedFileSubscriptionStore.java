@@ -0,0 +1,195 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Serves everything from an {@link InMemorySubscriptionStore}, and keeps every change in an append-only,
+ * memory-mapped file that is forced to disk before the change is applied in memory. On startup the file is read
+ * back and then rewritten with only the current tags and subscriptions, so it doesn't grow forever.
+ * <p>
+ * The file is mapped in segments of {@link #SEGMENT_SIZE} bytes. Each entry is its length, a checksum and the
+ * encoded {@link CSubscriptionChange}, and never spans two segments.
+ */
+final class MappedFileSubscriptionStore implements SubscriptionStore {
+
+    private static final Integer SEGMENT_SIZE = 16 << 20;
+    private static final Integer ENTRY_HEADER_SIZE = 8; //Payload length, payload checksum
+    private static final Integer END_OF_SEGMENT = -1, END_OF_FILE = 0;
+    private final Path mStorePath;
+    private final InMemorySubscriptionStore mState = new InMemorySubscriptionStore();
+    private FileChannel mFile; //Guarded by this
+    private MappedByteBuffer mSegment; //Guarded by this
+    private Integer mSegmentIndex; //Guarded by this
+
+    MappedFileSubscriptionStore(Path _storePath) {
+        mStorePath = _storePath;
+    }
+
+    @Override
+    public synchronized void createEnvironment() {
+        final Path compactedPath = mStorePath.resolveSibling(mStorePath.getFileName() + ".compacted");
+        try {
+            if (mStorePath.getParent() != null)
+                Files.createDirectories(mStorePath.getParent());
+            if (Files.exists(mStorePath))
+                mState.applySubscriptionChanges(readAll());
+
+            //Rewrite the current state and make the result the store file
+            Files.deleteIfExists(compactedPath);
+            mFile = FileChannel.open(compactedPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            mSegmentIndex = -1;
+            mapNextSegment();
+            final List<String> tags = mState.getTagsNow();
+            final Map<String, List<String>> tagsByDeviceId = new LinkedHashMap<>();
+            for (String tag : tags) {
+                append(CSubscriptionChange.addTag(tag));
+                mState.forEachSubscribedRegistrationId(tag, deviceId -> tagsByDeviceId.computeIfAbsent(deviceId,
+                        k -> new ArrayList<>()).add(tag));
+            }
+            for (Map.Entry<String, List<String>> deviceIdAndTags : tagsByDeviceId.entrySet())
+                append(CSubscriptionChange.subscribe(deviceIdAndTags.getKey(), deviceIdAndTags.getValue()));
+            mSegment.force();
+            Files.move(compactedPath, mStorePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption
+                    .ATOMIC_MOVE);
+
+            System.out.println("Loaded " + tags.size() + " tags and the subscriptions of " + tagsByDeviceId.size()
+                    + " devices from " + mStorePath.toAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Unable to load the subscription store " + mStorePath.toAbsolutePath()
+                    + ". Aborting.");
+        }
+    }
+
+    /**
+     * @return {@link List} Every valid entry of the store file, stopping at the first one that is not (which can
+     * only be a torn write of a change that was never applied).
+     */
+    private List<CSubscriptionChange> readAll() throws IOException {
+        final List<CSubscriptionChange> ret = new ArrayList<>();
+        try (FileChannel file = FileChannel.open(mStorePath, StandardOpenOption.READ)) {
+            for (Long start = 0L; start < file.size(); start += SEGMENT_SIZE) {
+                final MappedByteBuffer segment = file.map(FileChannel.MapMode.READ_ONLY, start, Math.min
+                        (SEGMENT_SIZE, file.size() - start));
+                while (segment.remaining() >= ENTRY_HEADER_SIZE) {
+                    final Integer length = segment.getInt();
+                    if (length.equals(END_OF_SEGMENT))
+                        break;
+                    if (length.equals(END_OF_FILE) || length < 0 || length > segment.remaining() -
+                            Integer.BYTES)
+                        return ret;
+                    final Integer checksum = segment.getInt();
+                    final byte[] payload = new byte[length];
+                    segment.get(payload);
+                    if (!checksum.equals(checksum(payload)))
+                        return ret;
+                    ret.add(CSubscriptionChange.decode(payload));
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static Integer checksum(byte[] payload) {
+        final CRC32 ret = new CRC32();
+        ret.update(payload);
+        return (int) ret.getValue();
+    }
+
+    private void mapNextSegment() throws IOException {
+        if (mSegment != null)
+            mSegment.force();
+        mSegmentIndex++;
+        mSegment = mFile.map(FileChannel.MapMode.READ_WRITE, (long) mSegmentIndex * SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    private void append(CSubscriptionChange change) throws IOException {
+        final byte[] payload = change.encode();
+        if (ENTRY_HEADER_SIZE + payload.length > SEGMENT_SIZE)
+            throw new IllegalArgumentException("Subscription change too large for the store file.");
+        if (mSegment.remaining() < ENTRY_HEADER_SIZE + payload.length) {
+            if (mSegment.remaining() >= Integer.BYTES)
+                mSegment.putInt(END_OF_SEGMENT);
+            mapNextSegment();
+        }
+        mSegment.putInt(payload.length).putInt(checksum(payload)).put(payload);
+    }
+
+    /**
+     * Writes the changes to the file and then applies them in memory, so that both see them in the same order.
+     */
+    private synchronized Boolean write(List<CSubscriptionChange> changes) {
+        try {
+            for (CSubscriptionChange change : changes)
+                append(change);
+            mSegment.force();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Unable to write to the subscription store " + mStorePath
+                    .toAbsolutePath() + ". Aborting.");
+        }
+        return mState.applySubscriptionChanges(changes);
+    }
+
+    @Override
+    public Boolean addTag(String tagName) {
+        return mState.hasTag(tagName) || write(Collections.singletonList(CSubscriptionChange.addTag(tagName)));
+    }
+
+    @Override
+    public List<String> getTagsNow() {
+        return mState.getTagsNow();
+    }
+
+    @Override
+    public Boolean forEachSubscribedRegistrationId(CEntityTagManager.CEntityTag tag, Consumer<String> consumer) {
+        return mState.forEachSubscribedRegistrationId(tag, consumer);
+    }
+
+    @Override
+    public Boolean addSubscriptions(String deviceId, List<String> tagList) {
+        return write(Collections.singletonList(CSubscriptionChange.subscribe(deviceId, tagList)));
+    }
+
+    @Override
+    public Boolean removeSubscriptions(String deviceId, List<String> tagList) {
+        return write(Collections.singletonList(CSubscriptionChange.unsubscribe(deviceId, tagList)));
+    }
+
+    @Override
+    public Boolean addSubscriptionsInBulk(List<CDeviceSubscription> subscriptions) {
+        final List<CSubscriptionChange> changes = new ArrayList<>(subscriptions.size());
+        for (CDeviceSubscription subscription : subscriptions)
+            changes.add(CSubscriptionChange.subscribe(subscription.getDeviceId(), subscription.getTags()));
+        return write(changes);
+    }
+
+    @Override
+    public Boolean updateRegistrationIdOnAllTags(String oldId, String newId) {
+        return write(Collections.singletonList(CSubscriptionChange.updateDevice(oldId, newId)));
+    }
+
+    @Override
+    public Boolean removeRegistrationIdFromAllTags(String deviceId) {
+        return write(Collections.singletonList(CSubscriptionChange.removeDevice(deviceId)));
+    }
+
+    @Override
+    public Boolean applySubscriptionChanges(List<CSubscriptionChange> changes) {
+        return write(changes);
+    }
+}
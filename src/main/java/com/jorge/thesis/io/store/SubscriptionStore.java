@@ -0,0 +1,70 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Where tags and the subscriptions of devices to them are kept. The engine in use is chosen through the resource
+ * /subscription_store, see {@link SubscriptionStoreSingleton}.
+ * <p>
+ * Every method can be called concurrently. Subscribing a device to a tag it is already subscribed to, or
+ * unsubscribing it from one it is not, is not an error.
+ */
+public interface SubscriptionStore {
+
+    /**
+     * Prepares the store. Must be called once, before anything else.
+     */
+    void createEnvironment();
+
+    /**
+     * Adds the tag if it doesn't exist yet.
+     */
+    Boolean addTag(String tagName);
+
+    /**
+     * @return {@link List} The names of all tags, in order of creation.
+     */
+    List<String> getTagsNow();
+
+    /**
+     * Hands the registration ids subscribed to the tag to the consumer one by one, without gathering them first.
+     *
+     * @return <value>TRUE</value> if every subscriber was handed, <value>FALSE</value> if reading them failed
+     * midway.
+     */
+    Boolean forEachSubscribedRegistrationId(CEntityTagManager.CEntityTag tag, Consumer<String> consumer);
+
+    /**
+     * Subscribes the device to the tags, creating the tags that don't exist.
+     */
+    Boolean addSubscriptions(String deviceId, List<String> tagList);
+
+    Boolean removeSubscriptions(String deviceId, List<String> tagList);
+
+    /**
+     * Subscribes many devices at once, creating the tags that don't exist.
+     *
+     * @return <value>TRUE</value> if all subscriptions were stored, <value>FALSE</value> if none were.
+     */
+    Boolean addSubscriptionsInBulk(List<CDeviceSubscription> subscriptions);
+
+    /**
+     * Moves every subscription of the old id to the new one. Where the new id is already subscribed to a tag, the
+     * subscription of the old id is dropped instead.
+     */
+    Boolean updateRegistrationIdOnAllTags(String oldId, String newId);
+
+    Boolean removeRegistrationIdFromAllTags(String deviceId);
+
+    /**
+     * Applies the changes in order. Every type of change but {@link CSubscriptionChange.Type#UPDATE_DEVICE} sets
+     * the subscriptions it names whatever they were before, so applying a list of them again once it was applied
+     * doesn't change the result.
+     */
+    Boolean applySubscriptionChanges(List<CSubscriptionChange> changes);
+}
@@ -0,0 +1,62 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.io.database.DBDAOSingleton;
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Holds the {@link SubscriptionStore} named by the resource /subscription_store: <code>derby</code> (the
+ * database, by default), <code>memory</code> (nothing survives a restart, meant for load tests) or
+ * <code>file</code> (a memory-mapped file in the configuration folder).
+ */
+public final class SubscriptionStoreSingleton {
+
+    private static final Object LOCK = new Object();
+    private static final String STORE_FILE_NAME = "subscriptions.store";
+    private static volatile SubscriptionStore mInstance;
+
+    private SubscriptionStoreSingleton() {
+    }
+
+    public static SubscriptionStore getInstance() {
+        SubscriptionStore ret = mInstance;
+        if (ret == null) {
+            synchronized (LOCK) {
+                ret = mInstance;
+                if (ret == null) {
+                    ret = createStore();
+                    mInstance = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    private static SubscriptionStore createStore() {
+        final String engine, configurationFolderName;
+        try {
+            engine = IOUtils.toString(SubscriptionStoreSingleton.class.getResourceAsStream
+                    ("/subscription_store")).trim().toLowerCase(Locale.ENGLISH);
+            configurationFolderName = IOUtils.toString(SubscriptionStoreSingleton.class.getResourceAsStream
+                    ("/configuration_folder_name"));
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            throw new IllegalStateException("Resources /subscription_store and /configuration_folder_name not " +
+                    "properly loaded.");
+        }
+
+        switch (engine) {
+            case "derby":
+                return DBDAOSingleton.getInstance();
+            case "memory":
+                return new InMemorySubscriptionStore();
+            case "file":
+                return new MappedFileSubscriptionStore(Paths.get(configurationFolderName, STORE_FILE_NAME));
+            default:
+                throw new IllegalStateException("Unknown subscription store " + engine + ". Aborting.");
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.jorge.thesis.services;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVParser;
+import org.apache.commons.csv.CSVRecord;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.*;
+
+/**
+ * Reads (device, tags) pairs from a bulk subscription body one at a time, so that the body never needs to be held
+ * in memory as a whole. Tags are returned as received (only split), validation is up to the caller. Tags in JSON
+ * that are not strings are returned as <value>null</value>, so that only their entry is rejected.
+ * <p>
+ * Accepted formats are a JSON array of objects such as <code>{"id": "...", "tags": ["a", "b"]}</code> (where
+ * "tags" may also be a single string with the tags separated as in the regular subscription request), or CSV
+ * records where the first column is the device id and every other column contains tags.
+ * <p>
+ * Malformed bodies make {@link #hasNext()} or {@link #next()} throw {@link IllegalArgumentException}.
+ */
+abstract class BulkSubscriptionReader implements Iterator<CDeviceSubscription> {
+
+    private final String mTagSeparator;
+    private CDeviceSubscription mNext;
+
+    private BulkSubscriptionReader(String _tagSeparator) {
+        mTagSeparator = _tagSeparator;
+    }
+
+    static BulkSubscriptionReader create(String contentType, Reader body, String tagSeparator) throws IOException {
+        if (contentType != null && contentType.toLowerCase(Locale.ENGLISH).startsWith("text/csv"))
+            return new CSVBulkSubscriptionReader(body, tagSeparator);
+        else
+            return new JSONBulkSubscriptionReader(body, tagSeparator);
+    }
+
+    /**
+     * @return {@link CDeviceSubscription} The next pair, or <value>null</value> if the body is over.
+     */
+    protected abstract CDeviceSubscription readNext();
+
+    @Override
+    public boolean hasNext() {
+        if (mNext == null)
+            mNext = readNext();
+        return mNext != null;
+    }
+
+    @Override
+    public CDeviceSubscription next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        final CDeviceSubscription ret = mNext;
+        mNext = null;
+        return ret;
+    }
+
+    void splitTagsInto(String tags, List<String> target) {
+        final StringTokenizer tokenizer = new StringTokenizer(tags, mTagSeparator);
+        while (tokenizer.hasMoreTokens())
+            target.add(tokenizer.nextToken());
+    }
+
+    private static final class JSONBulkSubscriptionReader extends BulkSubscriptionReader {
+
+        private final JSONTokener mTokener;
+        private Boolean mFinished = Boolean.FALSE, mFirst = Boolean.TRUE;
+
+        private JSONBulkSubscriptionReader(Reader body, String tagSeparator) {
+            super(tagSeparator);
+            mTokener = new JSONTokener(body);
+            try {
+                if (mTokener.nextClean() != '[')
+                    throw new IllegalArgumentException("Bulk subscription body is not a JSON array.");
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Bulk subscription body is not valid JSON.", e);
+            }
+        }
+
+        @Override
+        protected CDeviceSubscription readNext() {
+            if (mFinished)
+                return null;
+            try {
+                char c = mTokener.nextClean();
+                if (c == ']') {
+                    mFinished = Boolean.TRUE;
+                    return null;
+                }
+                if (!mFirst) {
+                    if (c != ',')
+                        throw new IllegalArgumentException("Expected ',' or ']' in bulk subscription body.");
+                } else
+                    mTokener.back();
+                mFirst = Boolean.FALSE;
+
+                final Object value = mTokener.nextValue();
+                if (!(value instanceof JSONObject))
+                    throw new IllegalArgumentException("Bulk subscription entries must be JSON objects.");
+                final JSONObject entry = (JSONObject) value;
+                final List<String> tags = new ArrayList<>();
+                final Object entryTags = entry.opt("tags");
+                if (entryTags instanceof JSONArray) {
+                    final JSONArray tagArray = (JSONArray) entryTags;
+                    for (int i = 0; i < tagArray.length(); i++) {
+                        final Object tag = tagArray.opt(i);
+                        if (tag instanceof String)
+                            splitTagsInto((String) tag, tags);
+                        else
+                            tags.add(null);
+                    }
+                } else if (entryTags instanceof String)
+                    splitTagsInto((String) entryTags, tags);
+                else if (entryTags != null)
+                    tags.add(null);
+                return new CDeviceSubscription(entry.optString("id", null), tags);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Bulk subscription body is not valid JSON.", e);
+            }
+        }
+    }
+
+    private static final class CSVBulkSubscriptionReader extends BulkSubscriptionReader {
+
+        private final Iterator<CSVRecord> mRecords;
+
+        private CSVBulkSubscriptionReader(Reader body, String tagSeparator) throws IOException {
+            super(tagSeparator);
+            mRecords = new CSVParser(body, CSVFormat.DEFAULT.withIgnoreEmptyLines(Boolean.TRUE)).iterator();
+        }
+
+        @Override
+        protected CDeviceSubscription readNext() {
+            final CSVRecord record;
+            try {
+                if (!mRecords.hasNext())
+                    return null;
+                record = mRecords.next();
+            } catch (RuntimeException e) { //Parse errors are wrapped by the CSV iterator
+                throw new IllegalArgumentException("Bulk subscription body is not valid CSV.", e);
+            }
+            final List<String> tags = new ArrayList<>();
+            for (int i = 1; i < record.size(); i++)
+                splitTagsInto(record.get(i), tags);
+            final String deviceId = record.get(0).trim();
+            return new CDeviceSubscription(deviceId.isEmpty() ? null : deviceId, tags);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.jorge.thesis.services;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for the GCM endpoint, so that sending can be tried under load without reaching Google. Every registration
+ * id is answered as delivered, but the more requests are being served at once the longer each one takes, and
+ * requests that arrive while as many as the capacity are being served get a 503.
+ * <p>
+ * Only available when the environment variable <code>COMM_EXP_GCM_SERV_STAND_IN_CAPACITY</code> is set. To use it,
+ * point the resource /gcm_server_url to <code>/gcm/send</code> on this server.
+ */
+public final class GCMStandInService extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+    private static final Long LATENCY_PER_REQUEST_SERVED_MILLIS = 20L;
+    private final Integer mCapacity;
+    private final AtomicInteger mRequestsServed = new AtomicInteger();
+    private final AtomicLong mLastMessageId = new AtomicLong();
+
+    /**
+     * @param _capacity {@link Integer} Most requests served at once.
+     */
+    public GCMStandInService(Integer _capacity) {
+        mCapacity = _capacity;
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        final Integer requestsServed = mRequestsServed.incrementAndGet();
+        try {
+            if (requestsServed > mCapacity) {
+                resp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                return;
+            }
+            final JSONObject ret = new JSONObject();
+            try {
+                final JSONArray registrationIds = new JSONObject(new JSONTokener(req.getReader()))
+                        .getJSONArray("registration_ids");
+                final JSONArray results = new JSONArray();
+                for (int i = 0; i < registrationIds.length(); i++)
+                    results.put(new JSONObject().put("message_id", "0:" + mLastMessageId.incrementAndGet()));
+                ret.put("multicast_id", mLastMessageId.get());
+                ret.put("success", registrationIds.length());
+                ret.put("failure", 0);
+                ret.put("canonical_ids", 0);
+                ret.put("results", results);
+            } catch (JSONException e) {
+                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+            try {
+                Thread.sleep(LATENCY_PER_REQUEST_SERVED_MILLIS * requestsServed);
+            } catch (InterruptedException e) {
+                e.printStackTrace(System.err);
+                //Will never happen
+            }
+            resp.setStatus(HttpServletResponse.SC_OK);
+            resp.setContentType("application/json");
+            resp.getWriter().print(ret.toString());
+        } finally {
+            mRequestsServed.decrementAndGet();
+        }
+    }
+}
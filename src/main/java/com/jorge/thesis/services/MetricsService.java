@@ -0,0 +1,26 @@
+package com.jorge.thesis.services;
+
+import com.jorge.thesis.util.MetricsSingleton;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Serves the current value of every metric as JSON.
+ */
+public final class MetricsService extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.setHeader("Cache-Control", "no-cache");
+        resp.getWriter().print(MetricsSingleton.getInstance().toJSONString());
+    }
+}
@@ -1,12 +1,20 @@
 package com.jorge.thesis.services;
 
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEncodedTagList;
 import com.jorge.thesis.datamodel.CEntityTagManager;
+import com.jorge.thesis.gcm.CSyncStatus;
+import com.jorge.thesis.gcm.SyncPipelineSingleton;
+import org.json.JSONObject;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -16,75 +24,306 @@ import java.util.regex.Pattern;
 public final class TagService extends HttpServlet {
 
     private static final String TAG_SEPARATOR = "-";
+    private static final Integer BULK_CHUNK_SIZE = 5000;
+    private static final Pattern TAG_FORMAT_PATTERN = Pattern.compile("[a-z0-9_]+");
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
             throws ServletException, IOException {
-        synchronized (this) {
-            final String requestType = req.getParameter("type"); //Request sent by a device to retrieve all tags
-            if (requestType == null)
+        final String requestType = req.getParameter("type"); //Request sent by a device to retrieve all tags
+        if (requestType == null)
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        else {
+            if (requestType.toLowerCase(Locale.ENGLISH).contentEquals("list")) {
+                sendTagList(req, resp);
+                return;
+            } else if (requestType.toLowerCase(Locale.ENGLISH).contentEquals("sync_status")) { //By the file server
+                sendSyncStatus(req, resp);
+            } else {
                 resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-            else {
-                if (requestType.toLowerCase(Locale.ENGLISH).contentEquals("list")) {
-                    resp.setStatus(HttpServletResponse.SC_OK);
-                    resp.getWriter().print(CEntityTagManager.generateAllCurrentTagsAsJSONArray());
-                } else {
-                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                }
             }
+        }
+
+        resp.setContentType("application/json");
+    }
 
+    private void sendSyncStatus(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final Long syncId;
+        try {
+            syncId = Long.valueOf(req.getParameter("sync_id"));
+        } catch (NumberFormatException e) {
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final CSyncStatus syncStatus = SyncPipelineSingleton.getInstance().getSyncStatus(syncId);
+        if (syncStatus == null)
+            resp.setStatus(HttpServletResponse.SC_NOT_FOUND);
+        else {
+            resp.setStatus(HttpServletResponse.SC_OK);
             resp.setContentType("application/json");
+            resp.getWriter().print(syncStatus.toJSONString());
+        }
+    }
+
+    /**
+     * Sends the pre-encoded tag list, or just a 304 if the device already has the current version.
+     */
+    private void sendTagList(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final CEncodedTagList tagList = CEntityTagManager.getEncodedTagList();
+        resp.setHeader("ETag", tagList.getETag());
+        resp.setHeader("Vary", "Accept-Encoding");
+        if (matchesETag(req.getHeader("If-None-Match"), tagList.getETag())) {
+            resp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        final byte[] body;
+        if (acceptsGzip(req.getHeader("Accept-Encoding"))) {
+            resp.setHeader("Content-Encoding", "gzip");
+            body = tagList.getGzipBody();
+        } else
+            body = tagList.getPlainBody();
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        resp.setContentLength(body.length);
+        resp.getOutputStream().write(body);
+    }
+
+    private static Boolean matchesETag(String ifNoneMatch, String eTag) {
+        if (ifNoneMatch == null)
+            return Boolean.FALSE;
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/"))
+                candidate = candidate.substring(2);
+            if (candidate.contentEquals("*") || candidate.contentEquals(eTag))
+                return Boolean.TRUE;
+        }
+        return Boolean.FALSE;
+    }
+
+    private static Boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null)
+            return Boolean.FALSE;
+        for (String coding : acceptEncoding.split(",")) {
+            final String[] codingAndParameters = coding.split(";");
+            if (codingAndParameters[0].trim().toLowerCase(Locale.ENGLISH).contentEquals("gzip")) {
+                for (Integer i = 1; i < codingAndParameters.length; i++) {
+                    final String parameter = codingAndParameters[i].replace(" ", "");
+                    if (parameter.matches("q=0(\\.0*)?"))
+                        return Boolean.FALSE;
+                }
+                return Boolean.TRUE;
+            }
         }
+        return Boolean.FALSE;
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        synchronized (this) {
-            final String requestType = req.getParameter("type"), deviceId = req.getParameter("id"), paramTags = req
-                    .getParameter("tags");
-
-            if (requestType != null && paramTags != null) {
-                final List<String> tagList = new LinkedList<>();
-                final StringTokenizer allTagsTokenizer = new StringTokenizer(paramTags, TAG_SEPARATOR);
-                final Pattern tagFormatPattern = Pattern.compile("[a-z0-9_]+");
-                while (allTagsTokenizer.hasMoreTokens()) {
-                    final String token = allTagsTokenizer.nextToken().toLowerCase(Locale.ENGLISH).trim();
-                    if (!tagFormatPattern.matcher(token).matches()) {
-                        System.err.println("Expectation failed for tag " + token);
-                        resp.setStatus(HttpServletResponse.SC_EXPECTATION_FAILED);
-                        return;
-                    } else if (!tagList.contains(token))
-                        tagList.add(token);
-                }
-                switch (requestType) {
-                    case "sync": //Request sent by the file server
-                        System.out.println("Sync requested for tags " + tagList);
-                        resp.setStatus(deviceId == null || CEntityTagManager.subscribeRegistrationIdToTags(deviceId, tagList) ? HttpServletResponse.SC_OK : HttpServletResponse.SC_GONE);
-                        tagList.forEach(CEntityTagManager::createTagSyncRequest);
-                        break;
-                    case "subscribe": //Request sent by a device
-                        if (deviceId != null) {
-                            if (CEntityTagManager.subscribeRegistrationIdToTags(deviceId, tagList))
-                                resp.setStatus(HttpServletResponse.SC_OK);
-                            else
-                                resp.setStatus(HttpServletResponse.SC_GONE);
-                        } else
-                            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                        break;
-                    case "unsubscribe": //Request sent by a device
-                        if (deviceId != null) {
-                            if (CEntityTagManager.unsubscribeRegistrationIdFromTags(deviceId, tagList))
-                                resp.setStatus(HttpServletResponse.SC_OK);
-                            else
-                                resp.setStatus(HttpServletResponse.SC_GONE);
-                        } else
-                            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                        break;
-                    default:
+        final String requestType = req.getParameter("type"), deviceId = req.getParameter("id"), paramTags = req
+                .getParameter("tags");
+
+        if ("bulk_subscribe".equals(requestType)) { //Request sent by the backend, tags come in the body
+            bulkSubscribe(req, resp);
+            return;
+        }
+
+        if (requestType != null && paramTags != null) {
+            final List<String> tokens = new LinkedList<>();
+            final StringTokenizer allTagsTokenizer = new StringTokenizer(paramTags, TAG_SEPARATOR);
+            while (allTagsTokenizer.hasMoreTokens())
+                tokens.add(allTagsTokenizer.nextToken());
+            final List<String> tagList = normaliseTags(tokens);
+            if (tagList == null) {
+                resp.setStatus(HttpServletResponse.SC_EXPECTATION_FAILED);
+                return;
+            }
+            switch (requestType) {
+                case "sync": //Request sent by the file server
+                    System.out.println("Sync requested for tags " + tagList);
+                    final Boolean subscribed = deviceId == null || subscribe(deviceId, tagList);
+                    //The sync itself is carried out in the background, its progress can be asked for by its id
+                    final CSyncStatus syncStatus = SyncPipelineSingleton.getInstance().submitSync(tagList);
+                    resp.setStatus(subscribed ? HttpServletResponse.SC_ACCEPTED : HttpServletResponse.SC_GONE);
+                    resp.setContentType("application/json");
+                    resp.getWriter().print("{\"sync_id\":" + syncStatus.getId() + "}");
+                    break;
+                case "subscribe": //Request sent by a device
+                    if (deviceId != null) {
+                        if (subscribe(deviceId, tagList))
+                            resp.setStatus(HttpServletResponse.SC_OK);
+                        else
+                            resp.setStatus(HttpServletResponse.SC_GONE);
+                    } else
                         resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    break;
+                case "unsubscribe": //Request sent by a device
+                    if (deviceId != null) {
+                        if (unsubscribe(deviceId, tagList))
+                            resp.setStatus(HttpServletResponse.SC_OK);
+                        else
+                            resp.setStatus(HttpServletResponse.SC_GONE);
+                    } else
+                        resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    break;
+                default:
+                    resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            }
+        } else
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    }
+
+    /**
+     * @param tokens {@link List} The tags as received. A <value>null</value> one stands for a tag that was not even a
+     *               string, and is not properly formatted either.
+     * @return {@link List} The tags lower-cased and without duplicates, or <value>null</value> if any of them is
+     * not properly formatted.
+     */
+    private static List<String> normaliseTags(List<String> tokens) {
+        final List<String> ret = new LinkedList<>();
+        for (String token : tokens) {
+            token = token == null ? "" : token.toLowerCase(Locale.ENGLISH).trim();
+            if (!TAG_FORMAT_PATTERN.matcher(token).matches()) {
+                System.err.println("Expectation failed for tag " + token);
+                return null;
+            } else if (!ret.contains(token))
+                ret.add(token);
+        }
+        return ret;
+    }
+
+    /**
+     * Applies the (device, tags) pairs in the body in chunks of {@link #BULK_CHUNK_SIZE}, writing the result of every
+     * pair as soon as its chunk is done. The result of each pair is the status that the equivalent single
+     * subscription request would have gotten. The body written is valid JSON whatever happens: if the rest of the
+     * request can't be read, it ends with an "error" instead.
+     */
+    private void bulkSubscribe(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        final BulkSubscriptionReader reader;
+        try {
+            reader = BulkSubscriptionReader.create(req.getContentType(), req.getReader(), TAG_SEPARATOR);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        resp.setStatus(HttpServletResponse.SC_OK);
+        resp.setContentType("application/json");
+        final BulkResultWriter writer = new BulkResultWriter(resp.getWriter());
+        final List<String> chunkDeviceIds = new ArrayList<>(BULK_CHUNK_SIZE);
+        final List<Integer> chunkStatuses = new ArrayList<>(BULK_CHUNK_SIZE);
+        final List<CDeviceSubscription> chunkSubscriptions = new ArrayList<>(BULK_CHUNK_SIZE);
+        try {
+            while (reader.hasNext()) {
+                final CDeviceSubscription item = reader.next();
+                final List<String> tagList = normaliseTags(item.getTags());
+                chunkDeviceIds.add(item.getDeviceId());
+                if (item.getDeviceId() == null)
+                    chunkStatuses.add(HttpServletResponse.SC_BAD_REQUEST);
+                else if (tagList == null)
+                    chunkStatuses.add(HttpServletResponse.SC_EXPECTATION_FAILED);
+                else {
+                    chunkStatuses.add(null); //Decided when the chunk is applied
+                    chunkSubscriptions.add(new CDeviceSubscription(item.getDeviceId(), tagList));
                 }
-            } else
-                resp.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                if (chunkDeviceIds.size() == BULK_CHUNK_SIZE)
+                    applyBulkChunk(writer, chunkDeviceIds, chunkStatuses, chunkSubscriptions);
+            }
+            applyBulkChunk(writer, chunkDeviceIds, chunkStatuses, chunkSubscriptions);
+            writer.finish(null);
+        } catch (IllegalArgumentException e) {
+            //Whatever was read properly is still applied, the rest of the body is rejected
+            System.err.println(e.getMessage());
+            applyBulkChunk(writer, chunkDeviceIds, chunkStatuses, chunkSubscriptions);
+            writer.finish(e.getMessage());
+        }
+    }
+
+    /**
+     * Applies the valid pairs of the chunk in a few large transactions (see
+     * {@link CEntityTagManager#subscribeRegistrationIdsToTagsInBulk(List)}). If one fails, they are applied again
+     * one by one, so that only those that fail on their own get {@link HttpServletResponse#SC_GONE}.
+     */
+    private void applyBulkChunk(BulkResultWriter writer, List<String> chunkDeviceIds, List<Integer> chunkStatuses,
+                                List<CDeviceSubscription> chunkSubscriptions) {
+        Boolean appliedAsChunk;
+        try { //The devices of the chunk are locked as a single subscription would lock them
+            appliedAsChunk = chunkSubscriptions.isEmpty() || CEntityTagManager.subscribeRegistrationIdsToTagsInBulk
+                    (chunkSubscriptions);
+        } catch (IllegalStateException e) { //How the database reports it
+            e.printStackTrace(System.err);
+            appliedAsChunk = Boolean.FALSE;
+        }
+
+        final Iterator<CDeviceSubscription> subscriptions = chunkSubscriptions.iterator();
+        for (Integer i = 0; i < chunkDeviceIds.size(); i++) {
+            Integer status = chunkStatuses.get(i);
+            if (status == null) {
+                final CDeviceSubscription subscription = subscriptions.next();
+                status = appliedAsChunk || subscribeAlone(subscription) ? HttpServletResponse.SC_OK :
+                        HttpServletResponse.SC_GONE;
+            }
+            writer.write(chunkDeviceIds.get(i), status);
+        }
+        writer.flush();
+
+        chunkDeviceIds.clear();
+        chunkStatuses.clear();
+        chunkSubscriptions.clear();
+    }
+
+    private Boolean subscribeAlone(CDeviceSubscription subscription) {
+        try {
+            return subscribe(subscription.getDeviceId(), subscription.getTags());
+        } catch (IllegalStateException e) {
+            e.printStackTrace(System.err);
+            return Boolean.FALSE;
         }
     }
+
+    /**
+     * Writes the body of a bulk subscription response, <code>{"results":[{"id":"...","status":200},...]}</code>, as
+     * the results are known.
+     */
+    private static final class BulkResultWriter {
+        private final PrintWriter mWriter;
+        private Boolean mFirstResult = Boolean.TRUE;
+
+        private BulkResultWriter(PrintWriter _writer) {
+            mWriter = _writer;
+            mWriter.print("{\"results\":[");
+        }
+
+        private void write(String deviceId, Integer status) {
+            if (!mFirstResult)
+                mWriter.print(',');
+            mFirstResult = Boolean.FALSE;
+            mWriter.print("{\"id\":" + JSONObject.quote(deviceId) + ",\"status\":" + status + "}");
+        }
+
+        private void flush() {
+            mWriter.flush();
+        }
+
+        /**
+         * @param error {@link String} Why the rest of the request was rejected, <value>null</value> if it wasn't.
+         */
+        private void finish(String error) {
+            mWriter.print(error == null ? "]}" : "],\"error\":" + JSONObject.quote(error) + "}");
+        }
+    }
+
+    /**
+     * Subscription changes for the same device are serialised by {@link CEntityTagManager}, so that they reach the
+     * database and the index in the order they were received. Changes for different devices run in parallel.
+     */
+    private Boolean subscribe(String deviceId, List<String> tagList) {
+        return CEntityTagManager.subscribeRegistrationIdToTags(deviceId, tagList);
+    }
+
+    private Boolean unsubscribe(String deviceId, List<String> tagList) {
+        return CEntityTagManager.unsubscribeRegistrationIdFromTags(deviceId, tagList);
+    }
 }
@@ -4,6 +4,7 @@ public final class EnvVars {
 
     public static final String API_KEY = System.getenv("COMM_EXP_GCM_SERV_API_KEY");
     public static final String PORT = System.getenv("COMM_EXP_GCM_SERV_PORT");
+    public static final String GCM_STAND_IN_CAPACITY = System.getenv("COMM_EXP_GCM_SERV_STAND_IN_CAPACITY");
 
     private EnvVars() throws IllegalAccessException {
         throw new IllegalAccessException("DO NOT CONSTRUCT " + EnvVars.class.getName());
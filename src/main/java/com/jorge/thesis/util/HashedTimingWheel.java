@@ -0,0 +1,115 @@
+package com.jorge.thesis.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hands items to a consumer once their deadline, in {@link System#nanoTime()} terms, has passed. Scheduling costs
+ * the same regardless of how many items are waiting: items are put in the bucket of the tick their deadline falls
+ * on, and a single thread visits one bucket per tick, so an item is handed at most one tick late.
+ * <p>
+ * Only that thread touches the buckets; items scheduled from other threads reach them through a lock-free inbox.
+ * The consumer runs on that thread too, so if it waits, every later item waits with it.
+ */
+public final class HashedTimingWheel<T> {
+
+    private final Long mTickNanos, mStartNanos = System.nanoTime();
+    private final Integer mMask;
+    private final Queue<Entry<T>>[] mBuckets;
+    private final Queue<Entry<T>> mInbox = new ConcurrentLinkedQueue<>();
+    private final Consumer<T> mConsumer;
+    private final AtomicLong mPending = new AtomicLong();
+    private Long mTick = 0L; //Only read and written by the wheel thread
+
+    /**
+     * @param _threadName {@link String} Name of the daemon thread that turns the wheel.
+     * @param _tick       {@link Long} Duration of a tick, that is, how late an item can be handed.
+     * @param _unit       {@link TimeUnit} Unit of the tick.
+     * @param _minBuckets {@link Integer} Minimum amount of buckets. It is rounded up to a power of two. Deadlines
+     *                    further than a full turn away are fine, they are just looked at once per turn.
+     * @param _consumer   {@link Consumer} Receives every item when its deadline passes.
+     */
+    public HashedTimingWheel(String _threadName, Long _tick, TimeUnit _unit, Integer _minBuckets, Consumer<T>
+            _consumer) {
+        Integer amount = 1;
+        while (amount < _minBuckets)
+            amount <<= 1;
+        @SuppressWarnings("unchecked") //Generic arrays can't be created, and this one never leaves the wheel
+        final Queue<Entry<T>>[] buckets = (Queue<Entry<T>>[]) new Queue<?>[amount];
+        for (int i = 0; i < amount; i++)
+            buckets[i] = new ArrayDeque<>();
+        mBuckets = buckets;
+        mMask = amount - 1;
+        mTickNanos = _unit.toNanos(_tick);
+        mConsumer = _consumer;
+
+        final Thread worker = new Thread(this::turn, _threadName);
+        worker.setDaemon(Boolean.TRUE);
+        worker.start();
+    }
+
+    /**
+     * @param deadlineNanos {@link Long} When the item is due, in {@link System#nanoTime()} terms. It may have
+     *                      passed already.
+     */
+    public void schedule(T item, Long deadlineNanos) {
+        mPending.incrementAndGet();
+        mInbox.add(new Entry<>(item, deadlineNanos));
+    }
+
+    /**
+     * @return {@link Long} Amount of items scheduled and not handed yet.
+     */
+    public Long getPending() {
+        return mPending.get();
+    }
+
+    private void turn() {
+        while (!Thread.currentThread().isInterrupted()) {
+            final Long nextTickNanos = mStartNanos + (mTick + 1) * mTickNanos;
+            Long waitNanos;
+            while ((waitNanos = nextTickNanos - System.nanoTime()) > 0)
+                LockSupport.parkNanos(this, waitNanos);
+            mTick++;
+
+            for (Entry<T> entry; (entry = mInbox.poll()) != null; ) {
+                //Rounded up, so that the item is never handed before its deadline
+                entry.mDeadlineTick = Math.max(mTick, (entry.mDeadlineNanos - mStartNanos + mTickNanos - 1) /
+                        mTickNanos);
+                mBuckets[(int) (entry.mDeadlineTick & mMask)].add(entry);
+            }
+
+            final Queue<Entry<T>> bucket = mBuckets[(int) (mTick & mMask)];
+            for (int i = bucket.size(); i > 0; i--) {
+                final Entry<T> entry = bucket.poll();
+                if (entry.mDeadlineTick > mTick)
+                    bucket.add(entry); //Due on a later turn
+                else {
+                    mPending.decrementAndGet();
+                    try {
+                        mConsumer.accept(entry.mItem);
+                    } catch (RuntimeException e) {
+                        //Report and keep the wheel turning
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Entry<T> {
+        private final T mItem;
+        private final long mDeadlineNanos; //Primitives, as there can be millions of entries
+        private long mDeadlineTick;
+
+        private Entry(T _item, long _deadlineNanos) {
+            mItem = _item;
+            mDeadlineNanos = _deadlineNanos;
+        }
+    }
+}
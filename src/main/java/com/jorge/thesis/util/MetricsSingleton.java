@@ -0,0 +1,117 @@
+package com.jorge.thesis.util;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Named counters, gauges and timers of the whole process, as served by the metrics service. Names are
+ * dot-separated, such as <code>gcm.send.queue_depth</code>.
+ */
+public final class MetricsSingleton {
+
+    private static final Object LOCK = new Object();
+    private static volatile MetricsSingleton mInstance;
+    private final ConcurrentMap<String, AtomicLong> mCounters = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, Supplier<? extends Number>> mGauges = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, CTimer> mTimers = new ConcurrentSkipListMap<>();
+
+    private MetricsSingleton() {
+    }
+
+    public static MetricsSingleton getInstance() {
+        MetricsSingleton ret = mInstance;
+        if (ret == null) {
+            synchronized (LOCK) {
+                ret = mInstance;
+                if (ret == null) {
+                    ret = new MetricsSingleton();
+                    mInstance = ret;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return {@link AtomicLong} The counter with this name, created at zero the first time it is asked for.
+     */
+    public AtomicLong counter(String name) {
+        return mCounters.computeIfAbsent(name, k -> new AtomicLong());
+    }
+
+    /**
+     * Registers a value that is read every time the metrics are, replacing any gauge with the same name.
+     */
+    public void gauge(String name, Supplier<? extends Number> supplier) {
+        mGauges.put(name, supplier);
+    }
+
+    /**
+     * @return {@link CTimer} The timer with this name, created empty the first time it is asked for.
+     */
+    public CTimer timer(String name) {
+        return mTimers.computeIfAbsent(name, k -> new CTimer());
+    }
+
+    public String toJSONString() {
+        final JSONObject ret = new JSONObject(), counters = new JSONObject(), gauges = new JSONObject(), timers =
+                new JSONObject();
+        try {
+            for (Map.Entry<String, AtomicLong> counter : mCounters.entrySet())
+                counters.put(counter.getKey(), counter.getValue().get());
+            for (Map.Entry<String, Supplier<? extends Number>> gauge : mGauges.entrySet())
+                gauges.put(gauge.getKey(), gauge.getValue().get());
+            for (Map.Entry<String, CTimer> timer : mTimers.entrySet())
+                timers.put(timer.getKey(), timer.getValue().toJSONObject());
+            ret.put("counters", counters);
+            ret.put("gauges", gauges);
+            ret.put("timers", timers);
+        } catch (JSONException e) {
+            e.printStackTrace(System.err);
+            //Will never happen
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Amount, mean and maximum of the durations recorded since the process started.
+     */
+    public static final class CTimer {
+
+        private final AtomicLong mCount = new AtomicLong(), mTotalNanos = new AtomicLong(), mMaxNanos = new
+                AtomicLong();
+
+        private CTimer() {
+        }
+
+        public void record(Long nanos) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+            mMaxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime()}.
+         */
+        public void recordSince(Long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        private JSONObject toJSONObject() throws JSONException {
+            final JSONObject ret = new JSONObject();
+            final Long count = mCount.get();
+            ret.put("count", count);
+            ret.put("mean_ms", count == 0 ? 0 : (double) mTotalNanos.get() / count / TimeUnit.MILLISECONDS.toNanos
+                    (1));
+            ret.put("max_ms", (double) mMaxNanos.get() / TimeUnit.MILLISECONDS.toNanos(1));
+            return ret;
+        }
+    }
+}
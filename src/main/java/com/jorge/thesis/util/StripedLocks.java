@@ -0,0 +1,86 @@
+package com.jorge.thesis.util;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Fixed set of locks indexed by key hash, so that operations on the same key are serialised while operations on
+ * different keys can run in parallel.
+ */
+public final class StripedLocks {
+
+    private final Lock[] mStripes;
+    private final Integer mMask;
+
+    /**
+     * @param minimumStripes {@link Integer} Minimum amount of stripes. It is rounded up to a power of two.
+     */
+    public StripedLocks(Integer minimumStripes) {
+        Integer amount = 1;
+        while (amount < minimumStripes)
+            amount <<= 1;
+        mStripes = new Lock[amount];
+        for (int i = 0; i < amount; i++)
+            mStripes[i] = new ReentrantLock();
+        mMask = amount - 1;
+    }
+
+    public Lock get(Object key) {
+        return mStripes[indexOf(key)];
+    }
+
+    /**
+     * @return {@link List} The stripes of all the keys, each one once and always in the same order, so that taking
+     * them one after the other can't deadlock with anybody else doing the same.
+     */
+    public List<Lock> getAll(Collection<?> keys) {
+        final BitSet indexes = new BitSet(mStripes.length);
+        for (Object key : keys)
+            indexes.set(indexOf(key));
+        final List<Lock> ret = new ArrayList<>(indexes.cardinality());
+        for (int i = indexes.nextSetBit(0); i >= 0; i = indexes.nextSetBit(i + 1))
+            ret.add(mStripes[i]);
+        return ret;
+    }
+
+    /**
+     * Splits the items into groups that can each be locked with {@link #getAll(Collection)} while most stripes stay
+     * free: the items are put in the order of the stripes of their keys, keeping their own order within a stripe,
+     * and then cut, so that each group takes only the few stripes its items share.
+     *
+     * @param key          {@link Function} The key of an item.
+     * @param maxGroupSize {@link Integer} Most items in a group.
+     * @return {@link List} The groups, in stripe order.
+     */
+    public <T> List<List<T>> partition(List<T> items, Function<? super T, ?> key, Integer maxGroupSize) {
+        final List<List<T>> byStripe = new ArrayList<>(mStripes.length);
+        for (int i = 0; i < mStripes.length; i++)
+            byStripe.add(new ArrayList<>());
+        for (T item : items)
+            byStripe.get(indexOf(key.apply(item))).add(item);
+        final List<List<T>> ret = new ArrayList<>();
+        List<T> group = new ArrayList<>(Math.min(maxGroupSize, items.size()));
+        for (List<T> stripeItems : byStripe)
+            for (T item : stripeItems) {
+                if (group.size() == maxGroupSize) {
+                    ret.add(group);
+                    group = new ArrayList<>(maxGroupSize);
+                }
+                group.add(item);
+            }
+        if (!group.isEmpty())
+            ret.add(group);
+        return ret;
+    }
+
+    private Integer indexOf(Object key) {
+        Integer hash = key.hashCode();
+        hash ^= (hash >>> 16); //Spread the high bits, as String hashes tend to differ there
+        return hash & mMask;
+    }
+}
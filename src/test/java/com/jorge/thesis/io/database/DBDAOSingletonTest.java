@@ -0,0 +1,36 @@
+package com.jorge.thesis.io.database;
+
+import com.jorge.thesis.io.store.SubscriptionStore;
+import com.jorge.thesis.io.store.SubscriptionStoreConformanceTest;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs on a new in-memory database for every test.
+ */
+public class DBDAOSingletonTest extends SubscriptionStoreConformanceTest {
+
+    private static final Integer POOL_SIZE = 8;
+    private static final String DROPPED_STATE = "08006";
+    private static final AtomicInteger DATABASE_COUNT = new AtomicInteger();
+    private String mDatabaseName;
+
+    @Override
+    protected SubscriptionStore createStore() {
+        mDatabaseName = "memory:conformance" + DATABASE_COUNT.incrementAndGet();
+        return new DBDAOSingleton("jdbc:derby:" + mDatabaseName + ";create=true", POOL_SIZE);
+    }
+
+    @Override
+    protected void destroyStore(SubscriptionStore store) throws SQLException {
+        try {
+            //Also closes the connections of the store
+            DriverManager.getConnection("jdbc:derby:" + mDatabaseName + ";drop=true");
+        } catch (SQLException e) {
+            if (!DROPPED_STATE.equals(e.getSQLState())) //Dropping a database always throws this one
+                throw e;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package com.jorge.thesis.io.store;
+
+public class InMemorySubscriptionStoreTest extends SubscriptionStoreConformanceTest {
+
+    @Override
+    protected SubscriptionStore createStore() {
+        return new InMemorySubscriptionStore();
+    }
+}
@@ -0,0 +1,44 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.datamodel.CEntityTags;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class MappedFileSubscriptionStoreTest extends SubscriptionStoreConformanceTest {
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private Path storePath() {
+        return mFolder.getRoot().toPath().resolve("subscriptions.store");
+    }
+
+    @Override
+    protected SubscriptionStore createStore() {
+        return new MappedFileSubscriptionStore(storePath());
+    }
+
+    @Test
+    public void subscriptionsSurviveARestart() {
+        final SubscriptionStore store = createStore();
+        store.createEnvironment();
+        store.addSubscriptions("device", Arrays.asList("news", "sports"));
+        store.removeSubscriptions("device", Collections.singletonList("sports"));
+
+        final SubscriptionStore restarted = createStore();
+        restarted.createEnvironment();
+        assertEquals(Arrays.asList("news", "sports"), restarted.getTagsNow());
+        final Set<String> subscribers = new HashSet<>();
+        restarted.forEachSubscribedRegistrationId(CEntityTags.create("news"), subscribers::add);
+        assertEquals(Collections.singleton("device"), subscribers);
+    }
+}
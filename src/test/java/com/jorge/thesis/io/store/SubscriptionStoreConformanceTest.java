@@ -0,0 +1,189 @@
+package com.jorge.thesis.io.store;
+
+import com.jorge.thesis.datamodel.CDeviceSubscription;
+import com.jorge.thesis.datamodel.CEntityTags;
+import com.jorge.thesis.datamodel.CSubscriptionChange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * What every {@link SubscriptionStore} must do, whatever its engine. Each engine has a subclass that tells how to
+ * create a new, empty store of its own for every test.
+ */
+public abstract class SubscriptionStoreConformanceTest {
+
+    private static final Integer CONCURRENT_DEVICES = 2000, CONCURRENT_THREADS = 8;
+    private SubscriptionStore mStore;
+
+    /**
+     * @return {@link SubscriptionStore} A new store, with nothing in it and its environment not created yet.
+     */
+    protected abstract SubscriptionStore createStore() throws Exception;
+
+    /**
+     * Releases what {@link #createStore()} took, once the test is done with the store.
+     */
+    protected void destroyStore(SubscriptionStore store) throws Exception {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = createStore();
+        mStore.createEnvironment();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        destroyStore(mStore);
+    }
+
+    private Set<String> subscribers(String tagName) {
+        final Set<String> ret = new HashSet<>();
+        assertTrue(mStore.forEachSubscribedRegistrationId(CEntityTags.create(tagName), registrationId ->
+                assertTrue("Subscriber " + registrationId + " handed twice", ret.add(registrationId))));
+        return ret;
+    }
+
+    private static Set<String> setOf(String... elements) {
+        return new HashSet<>(Arrays.asList(elements));
+    }
+
+    @Test
+    public void tagsAreListedOnceInOrderOfCreation() {
+        assertTrue(mStore.addTag("news"));
+        assertTrue(mStore.addTag("sports"));
+        assertTrue(mStore.addTag("news"));
+        assertEquals(Arrays.asList("news", "sports"), mStore.getTagsNow());
+    }
+
+    @Test
+    public void unknownTagHasNoSubscribers() {
+        assertEquals(Collections.<String>emptySet(), subscribers("missing"));
+    }
+
+    @Test
+    public void subscribingCreatesMissingTags() {
+        assertTrue(mStore.addSubscriptions("device", Arrays.asList("news", "sports")));
+        assertEquals(new HashSet<>(Arrays.asList("news", "sports")), new HashSet<>(mStore.getTagsNow()));
+        assertEquals(setOf("device"), subscribers("news"));
+        assertEquals(setOf("device"), subscribers("sports"));
+    }
+
+    @Test
+    public void subscribingTwiceIsNotAnError() {
+        assertTrue(mStore.addSubscriptions("device", Collections.singletonList("news")));
+        assertTrue(mStore.addSubscriptions("device", Arrays.asList("news", "sports")));
+        assertEquals(setOf("device"), subscribers("news"));
+        assertEquals(setOf("device"), subscribers("sports"));
+    }
+
+    @Test
+    public void unsubscribingOnlyRemovesTheGivenTags() {
+        mStore.addSubscriptions("device", Arrays.asList("news", "sports"));
+        mStore.addSubscriptions("other", Collections.singletonList("news"));
+        assertTrue(mStore.removeSubscriptions("device", Collections.singletonList("news")));
+        assertEquals(setOf("other"), subscribers("news"));
+        assertEquals(setOf("device"), subscribers("sports"));
+    }
+
+    @Test
+    public void unsubscribingFromTagsNotSubscribedToIsNotAnError() {
+        mStore.addTag("news");
+        assertTrue(mStore.removeSubscriptions("device", Arrays.asList("news", "missing")));
+        assertEquals(Collections.<String>emptySet(), subscribers("news"));
+    }
+
+    @Test
+    public void bulkSubscriptionStoresEveryPair() {
+        mStore.addSubscriptions("existing", Collections.singletonList("news"));
+        final List<CDeviceSubscription> subscriptions = new ArrayList<>();
+        final Set<String> expected = new HashSet<>(Collections.singleton("existing"));
+        for (Integer i = 0; i < 2500; i++) {
+            subscriptions.add(new CDeviceSubscription("device" + i, Arrays.asList("news", "bulk")));
+            expected.add("device" + i);
+        }
+        subscriptions.add(1200, new CDeviceSubscription("existing", Collections.singletonList("news")));
+        subscriptions.add(new CDeviceSubscription("device0", Collections.singletonList("news")));
+        assertTrue(mStore.addSubscriptionsInBulk(subscriptions));
+        assertEquals(expected, subscribers("news"));
+        expected.remove("existing");
+        assertEquals(expected, subscribers("bulk"));
+    }
+
+    @Test
+    public void updatingARegistrationIdMovesAllItsSubscriptions() {
+        mStore.addSubscriptions("old", Arrays.asList("news", "sports"));
+        mStore.addSubscriptions("new", Collections.singletonList("news"));
+        assertTrue(mStore.updateRegistrationIdOnAllTags("old", "new"));
+        assertEquals(setOf("new"), subscribers("news"));
+        assertEquals(setOf("new"), subscribers("sports"));
+    }
+
+    @Test
+    public void removingARegistrationIdRemovesAllItsSubscriptions() {
+        mStore.addSubscriptions("device", Arrays.asList("news", "sports"));
+        mStore.addSubscriptions("other", Collections.singletonList("sports"));
+        assertTrue(mStore.removeRegistrationIdFromAllTags("device"));
+        assertEquals(Collections.<String>emptySet(), subscribers("news"));
+        assertEquals(setOf("other"), subscribers("sports"));
+    }
+
+    @Test
+    public void changesAreAppliedInOrder() {
+        assertTrue(mStore.applySubscriptionChanges(Arrays.asList(
+                CSubscriptionChange.addTag("empty"),
+                CSubscriptionChange.subscribe("a", Arrays.asList("news", "sports")),
+                CSubscriptionChange.unsubscribe("a", Collections.singletonList("sports")),
+                CSubscriptionChange.updateDevice("a", "b"),
+                CSubscriptionChange.subscribe("a", Collections.singletonList("sports")),
+                CSubscriptionChange.subscribe("c", Collections.singletonList("news")),
+                CSubscriptionChange.removeDevice("c"))));
+        assertTrue(mStore.getTagsNow().contains("empty"));
+        assertEquals(setOf("b"), subscribers("news"));
+        assertEquals(setOf("a"), subscribers("sports"));
+    }
+
+    /**
+     * The journal applies again whatever it can't tell was applied, which must not change the result.
+     */
+    @Test
+    public void applyingChangesWithoutUpdatesAgainDoesNotChangeTheResult() {
+        final List<CSubscriptionChange> changes = Arrays.asList(
+                CSubscriptionChange.subscribe("b", Collections.singletonList("news")),
+                CSubscriptionChange.removeDevice("a"),
+                CSubscriptionChange.subscribe("a", Collections.singletonList("sports")),
+                CSubscriptionChange.unsubscribe("b", Collections.singletonList("weather")));
+        mStore.addSubscriptions("a", Collections.singletonList("news"));
+        assertTrue(mStore.applySubscriptionChanges(changes));
+        assertTrue(mStore.applySubscriptionChanges(changes));
+        assertEquals(setOf("b"), subscribers("news"));
+        assertEquals(setOf("a"), subscribers("sports"));
+    }
+
+    @Test
+    public void concurrentSubscriptionsAreAllStored() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_THREADS);
+        try {
+            final List<Future<Boolean>> results = new ArrayList<>();
+            for (Integer i = 0; i < CONCURRENT_DEVICES; i++) {
+                final String deviceId = "device" + i;
+                results.add(executor.submit(() -> mStore.addSubscriptions(deviceId, Arrays.asList("news",
+                        "sports"))));
+            }
+            for (Future<Boolean> result : results)
+                assertTrue(result.get());
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(CONCURRENT_DEVICES, (Integer) subscribers("news").size());
+        assertEquals(CONCURRENT_DEVICES, (Integer) subscribers("sports").size());
+    }
+}